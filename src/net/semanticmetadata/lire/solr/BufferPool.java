@@ -0,0 +1,94 @@
+package net.semanticmetadata.lire.solr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte arrays for reading image files. The arrays are grouped in size classes of powers
+ * of two, so a file gets an array of the next bigger class and the arrays can be reused for files of
+ * different sizes. Released arrays are kept up to the given number of bytes, the rest is left to the
+ * garbage collector. Instances are thread safe.
+ */
+public class BufferPool {
+    // smallest size class is 2^12 = 4 kB
+    private static final int MIN_SHIFT = 12;
+    // arrays bigger than 2^26 = 64 MB are not pooled
+    private static final int MAX_SHIFT = 26;
+
+    private final ConcurrentLinkedQueue<byte[]>[] classes;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    /**
+     * @param maxPooledBytes maximum number of bytes kept in the pool.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        classes = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ConcurrentLinkedQueue<byte[]>();
+        }
+    }
+
+    /**
+     * @return an array of at least the given size, it may be longer.
+     */
+    public byte[] acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0) return new byte[size];
+        byte[] buffer = classes[sizeClass].poll();
+        if (buffer == null) return new byte[1 << (sizeClass + MIN_SHIFT)];
+        pooledBytes.addAndGet(-buffer.length);
+        return buffer;
+    }
+
+    /**
+     * Returns an array to the pool, it must not be used afterwards.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) return;
+        int sizeClass = sizeClass(buffer.length);
+        // only arrays created by acquire() fit exactly into their class.
+        if (sizeClass < 0 || buffer.length != 1 << (sizeClass + MIN_SHIFT)) return;
+        if (pooledBytes.addAndGet(buffer.length) > maxPooledBytes) {
+            pooledBytes.addAndGet(-buffer.length);
+            return;
+        }
+        classes[sizeClass].offer(buffer);
+    }
+
+    /**
+     * Reads the whole file into a pooled array.
+     *
+     * @return the array, the file content starts at 0 and is file.length() long.
+     * @throws IOException
+     */
+    public byte[] read(File file) throws IOException {
+        int length = (int) file.length();
+        byte[] buffer = acquire(length);
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int offset = 0, read;
+            while (offset < length && (read = fis.read(buffer, offset, length - offset)) > 0) {
+                offset += read;
+            }
+            if (offset < length) throw new IOException("Unexpected end of file " + file.getPath());
+        } catch (IOException e) {
+            release(buffer);
+            throw e;
+        } finally {
+            fis.close();
+        }
+        return buffer;
+    }
+
+    private static int sizeClass(int size) {
+        int shift = MIN_SHIFT;
+        while (shift <= MAX_SHIFT && (1 << shift) < size) shift++;
+        return (shift > MAX_SHIFT) ? -1 : shift - MIN_SHIFT;
+    }
+}
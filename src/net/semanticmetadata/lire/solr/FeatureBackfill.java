@@ -0,0 +1,276 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.indexing.LireCustomCodec;
+import net.semanticmetadata.lire.utils.LuceneUtils;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+
+import javax.imageio.ImageIO;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Extracts the deferred features of a {@link FeatureProfile} for the documents already in the index,
+ * e.g. SURF for images indexed with the cheap global features only. The images are read again from the
+ * paths in their identifiers and the documents are replaced in the index. The builders store the identifier
+ * without indexing it, so the old documents are deleted by their document numbers.
+ * <p/>
+ * The threads run with the lowest priority, so the backfill can share the machine with other work.
+ * It can be stopped and started again at any time, documents having the features are skipped. A marker
+ * field is stored for each extracted feature, so images without e.g. SURF key points are skipped as well.
+ */
+public class FeatureBackfill implements Runnable {
+    // suffix of the marker field stored when a deferred feature was extracted, even if it produced no fields.
+    public static final String DONE_FIELD_SUFFIX = "_done";
+
+    private String indexPath;
+    private FeatureProfile profile;
+    private Set<String> selection = null;
+    private int numberOfThreads = 1;
+    // the index is committed after this number of documents, so an interrupted backfill keeps its work.
+    private int commitInterval = 1000;
+    private IndexWriter writer;
+    private VisualWordsAssigner assigner = null;
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    // replacing a document holds the read lock, so a commit (write lock) never sees only one half of it.
+    private final ReadWriteLock commitLock = new ReentrantReadWriteLock();
+    private ThreadLocal<Map<String, DocumentBuilder>> builders = new ThreadLocal<Map<String, DocumentBuilder>>() {
+        protected Map<String, DocumentBuilder> initialValue() {
+            Map<String, DocumentBuilder> result = new HashMap<String, DocumentBuilder>();
+            for (String feature : profile.getDeferredFeatures()) {
+                result.put(feature, profile.createBuilder(feature));
+            }
+            return result;
+        }
+    };
+
+    /**
+     * @param indexPath the index, it is updated in place.
+     * @param profile   the profile, whose deferred features are extracted.
+     */
+    public FeatureBackfill(String indexPath, FeatureProfile profile) {
+        this.indexPath = indexPath;
+        this.profile = profile;
+    }
+
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+    }
+
+    public void setCommitInterval(int commitInterval) {
+        this.commitInterval = Math.max(1, commitInterval);
+    }
+
+    /**
+     * @param assigner assigns the visual words of the existing vocabulary to the documents getting SURF features.
+     *                 Without it the visual words have to be created for the whole index after the backfill.
+     */
+    public void setVisualWordsAssigner(VisualWordsAssigner assigner) {
+        this.assigner = assigner;
+    }
+
+    /**
+     * Restricts the backfill to the images listed in the file, one per line.
+     *
+     * @throws IOException
+     */
+    public void setSelection(File selectionFile) throws IOException {
+        selection = new HashSet<String>();
+        BufferedReader br = new BufferedReader(new FileReader(selectionFile));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().length() > 0) selection.add(line.trim());
+            }
+        } finally {
+            br.close();
+        }
+    }
+
+    public void run() {
+        List<String> deferred = profile.getDeferredFeatures();
+        if (deferred.isEmpty()) return;
+        IndexWriterConfig config = createConfig();
+        // the document numbers of the reader must stay valid for the deletes, so nothing is merged until the end.
+        config.setMergePolicy(NoMergePolicy.COMPOUND_FILES);
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FeatureBackfill");
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        try {
+            writer = new IndexWriter(FSDirectory.open(new File(indexPath)), config);
+            // the reader keeps seeing the index as it was, while the writer replaces the documents.
+            final IndexReader reader = DirectoryReader.open(writer, false);
+            try {
+                List<Integer> pending = pending(reader, deferred);
+                System.out.println("Extracting " + deferred + " for " + pending.size() + " documents.");
+                long l = System.currentTimeMillis();
+                for (final Integer doc : pending) {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            backfill(reader, doc);
+                        }
+                    });
+                }
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                writer.commit();
+                long l1 = System.currentTimeMillis() - l;
+                System.out.println("Backfilled " + count.get() + " documents in " + l1 / 1000 + " seconds, " + failed.get() + " failed.");
+            } finally {
+                reader.close();
+                writer.close();
+            }
+            // the replaced documents are removed, the visual words builder of LIRE doesn't skip deleted documents.
+            IndexWriter merger = new IndexWriter(FSDirectory.open(new File(indexPath)), createConfig());
+            merger.forceMergeDeletes();
+            merger.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static IndexWriterConfig createConfig() {
+        IndexWriterConfig config = new IndexWriterConfig(LuceneUtils.LUCENE_VERSION, new StandardAnalyzer(LuceneUtils.LUCENE_VERSION));
+        config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+        config.setCodec(new LireCustomCodec());
+        return config;
+    }
+
+    /**
+     * @return the selected documents missing at least one of the deferred features.
+     */
+    private List<Integer> pending(IndexReader reader, List<String> deferred) throws IOException {
+        Set<String> fields = new HashSet<String>();
+        fields.add(DocumentBuilder.FIELD_NAME_IDENTIFIER);
+        for (String feature : deferred) {
+            fields.add(FeatureProfile.fieldName(feature));
+            fields.add(FeatureProfile.fieldName(feature) + DONE_FIELD_SUFFIX);
+        }
+        List<Integer> result = new ArrayList<Integer>();
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            Document d = reader.document(i, fields);
+            if (selection != null && !selection.contains(d.get(DocumentBuilder.FIELD_NAME_IDENTIFIER))) continue;
+            if (!missing(d, deferred).isEmpty()) result.add(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the features, which were neither extracted by the backfill nor during indexing.
+     */
+    private static List<String> missing(Document d, List<String> features) {
+        List<String> result = new ArrayList<String>();
+        for (String feature : features) {
+            String field = FeatureProfile.fieldName(feature);
+            if (d.getField(field + DONE_FIELD_SUFFIX) == null && d.getField(field) == null) result.add(feature);
+        }
+        return result;
+    }
+
+    private void backfill(IndexReader reader, int docId) {
+        String path = null;
+        try {
+            Document stored = reader.document(docId);
+            path = stored.get(DocumentBuilder.FIELD_NAME_IDENTIFIER);
+            BufferedImage img = ImageIO.read(new File(path));
+            if (img == null) throw new IOException("Unsupported image format.");
+            List<String> features = missing(stored, profile.getDeferredFeatures());
+            Document doc = restore(stored, features.contains(FeatureProfile.SURF));
+            for (String feature : features) {
+                for (Field field : builders.get().get(feature).createDescriptorFields(img)) {
+                    if (field != null) doc.add(field);
+                }
+                doc.add(new StoredField(FeatureProfile.fieldName(feature) + DONE_FIELD_SUFFIX, "true"));
+            }
+            if (assigner != null && features.contains(FeatureProfile.SURF)) assigner.assign(doc);
+            replace(reader, docId, doc, stored);
+            if (count.incrementAndGet() % commitInterval == 0) {
+                commitLock.writeLock().lock();
+                try {
+                    writer.commit();
+                } finally {
+                    commitLock.writeLock().unlock();
+                }
+                System.out.println("Backfilled " + count.get() + " documents.");
+            }
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            System.err.println("[FeatureBackfill] Could not handle document " + (path != null ? path : docId) + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the document, if the new one can't be added the old one is added again.
+     */
+    private void replace(IndexReader reader, int docId, Document doc, Document stored) throws IOException {
+        commitLock.readLock().lock();
+        try {
+            if (!writer.tryDeleteDocument(reader, docId)) throw new IOException("The document could not be replaced.");
+            try {
+                writer.addDocument(doc);
+            } catch (IOException e) {
+                writer.addDocument(restore(stored, false));
+                throw e;
+            } catch (RuntimeException e) {
+                writer.addDocument(restore(stored, false));
+                throw e;
+            }
+        } finally {
+            commitLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Creates an indexable document from the stored fields, with the field types used by the builders.
+     *
+     * @param dropVisualWords true if the visual words have to be created again, because SURF is added.
+     */
+    private static Document restore(Document stored, boolean dropVisualWords) {
+        Document doc = new Document();
+        for (IndexableField field : stored.getFields()) {
+            String name = field.name();
+            if (field.binaryValue() != null) {
+                doc.add(new StoredField(name, field.binaryValue()));
+            } else if (name.equals(DocumentBuilder.FIELD_NAME_SURF_VISUAL_WORDS)) {
+                if (!dropVisualWords) doc.add(new TextField(name, field.stringValue(), Field.Store.YES));
+            } else if (name.equals(DocumentBuilder.FIELD_NAME_SURF_LOCAL_FEATURE_HISTOGRAM)) {
+                if (!dropVisualWords) doc.add(new StringField(name, field.stringValue(), Field.Store.YES));
+            } else if (name.equals(DocumentBuilder.FIELD_NAME_IDENTIFIER)) {
+                doc.add(new StringField(name, field.stringValue(), Field.Store.YES));
+            } else if (name.endsWith(GenericDocumentBuilder.HASH_FIELD_SUFFIX)) {
+                doc.add(new TextField(name, field.stringValue(), Field.Store.YES));
+            } else {
+                doc.add(new StoredField(name, field.stringValue()));
+            }
+        }
+        return doc;
+    }
+}
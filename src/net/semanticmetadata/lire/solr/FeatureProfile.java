@@ -0,0 +1,279 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.AbstractDocumentBuilder;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.impl.ChainedDocumentBuilder;
+import net.semanticmetadata.lire.impl.SurfDocumentBuilder;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+
+import java.awt.image.BufferedImage;
+import java.io.FileNotFoundException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A named set of features, defined in config.properties as a comma separated list, e.g.
+ * profile.default = surf, colorlayout. The features are named by the lower case class names of the
+ * LIRE features plus surf. Deferred features are left out during indexing and extracted later by the
+ * {@link FeatureBackfill}.
+ * <p/>
+ * The builders created by a profile measure the time spent in each feature, so the cost of a profile
+ * can be printed at the end of a run. The global features share one scaled copy of big images.
+ * Instances are thread safe, the builders are not.
+ */
+public class FeatureProfile {
+    public static final String SURF = "surf";
+    // cost entry of the image scaling shared by the global features
+    private static final String SCALING = "(scaling)";
+
+    private static final Map<String, Class> classForFeature = new TreeMap<String, Class>();
+    // the global features known by the LireSolr core and the prefix of their fields there.
+    private static final Map<String, String> solrPrefixes = new LinkedHashMap<String, String>();
+
+    static {
+        for (Class c : GenericDocumentBuilder.fieldForClass.keySet()) {
+            classForFeature.put(c.getSimpleName().toLowerCase(), c);
+        }
+        solrPrefixes.put(DocumentBuilder.FIELD_NAME_COLORLAYOUT, "cl");
+        solrPrefixes.put(DocumentBuilder.FIELD_NAME_EDGEHISTOGRAM, "eh");
+        solrPrefixes.put(DocumentBuilder.FIELD_NAME_JCD, "jc");
+        solrPrefixes.put(DocumentBuilder.FIELD_NAME_PHOG, "ph");
+        solrPrefixes.put(DocumentBuilder.FIELD_NAME_OPPONENT_HISTOGRAM, "oh");
+    }
+
+    private final String name;
+    private final List<String> features = new ArrayList<String>();
+    private final Set<String> deferred = new HashSet<String>();
+    private final GenericDocumentBuilder.HashingMode hashingMode;
+    private final Map<String, Cost> costs = new LinkedHashMap<String, Cost>();
+
+    /**
+     * @param name        name of the profile, used in messages.
+     * @param features    comma separated list of features.
+     * @param deferred    comma separated list of features, which are extracted by the backfill only.
+     * @param hashingMode hashing of the global features.
+     */
+    public FeatureProfile(String name, String features, String deferred, GenericDocumentBuilder.HashingMode hashingMode) {
+        this.name = name;
+        this.hashingMode = hashingMode;
+        for (String feature : split(features)) {
+            if (!SURF.equals(feature) && !classForFeature.containsKey(feature)) {
+                throw new IllegalArgumentException("Unknown feature " + feature + " in profile " + name + ", use one of: " + SURF + ", " + classForFeature.keySet());
+            }
+            if (this.features.contains(feature)) continue;
+            this.features.add(feature);
+            costs.put(feature, new Cost());
+        }
+        for (String feature : split(deferred)) {
+            if (this.features.contains(feature)) this.deferred.add(feature);
+        }
+        costs.put(SCALING, new Cost());
+    }
+
+    /**
+     * Reads the profile selected by the profile property, it defaults to SURF and ColorLayout.
+     */
+    public static FeatureProfile fromProperties(Properties prop) {
+        String name = prop.getProperty("profile", "default");
+        String features = prop.getProperty("profile." + name);
+        if (features == null) {
+            if (!"default".equals(name)) throw new IllegalArgumentException("Feature profile " + name + " is not defined, add profile." + name + " to config.properties.");
+            features = SURF + ", colorlayout";
+        }
+        return new FeatureProfile(name, features, prop.getProperty("deferredFeatures", ""),
+                GenericDocumentBuilder.HashingMode.valueOf(prop.getProperty("hashingMode", "BitSampling")));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getFeatures() {
+        return Collections.unmodifiableList(features);
+    }
+
+    public boolean isDeferred(String feature) {
+        return deferred.contains(feature);
+    }
+
+    /**
+     * @return true if the feature is part of the profile and extracted during indexing.
+     */
+    public boolean isIndexed(String feature) {
+        return features.contains(feature) && !deferred.contains(feature);
+    }
+
+    public List<String> getDeferredFeatures() {
+        List<String> result = new ArrayList<String>();
+        for (String feature : features) {
+            if (deferred.contains(feature)) result.add(feature);
+        }
+        return result;
+    }
+
+    /**
+     * @return the index field holding the feature.
+     */
+    public static String fieldName(String feature) {
+        if (SURF.equals(feature)) return DocumentBuilder.FIELD_NAME_SURF;
+        return GenericDocumentBuilder.fieldForClass.get(classForFeature.get(feature));
+    }
+
+    /**
+     * @return the index fields of the global features known by the LireSolr core, mapped to their prefix there.
+     */
+    public static Map<String, String> getSolrPrefixes() {
+        return Collections.unmodifiableMap(solrPrefixes);
+    }
+
+    /**
+     * Adds the builders of all the features extracted during indexing.
+     */
+    public void addBuilders(ChainedDocumentBuilder builder) {
+        addLocalBuilders(builder);
+        addGlobalBuilders(builder);
+    }
+
+    /**
+     * Adds the builders of the global features extracted during indexing.
+     */
+    public void addGlobalBuilders(ChainedDocumentBuilder builder) {
+        List<DocumentBuilder> builders = new ArrayList<DocumentBuilder>();
+        for (String feature : features) {
+            if (isIndexed(feature) && !SURF.equals(feature)) builders.add(createBuilder(feature));
+        }
+        if (!builders.isEmpty()) builder.addBuilder(new GlobalFeaturesBuilder(builders, costs.get(SCALING)));
+    }
+
+    /**
+     * Adds the builders of the local features extracted during indexing.
+     */
+    public void addLocalBuilders(ChainedDocumentBuilder builder) {
+        if (isIndexed(SURF)) builder.addBuilder(createBuilder(SURF));
+    }
+
+    /**
+     * @return a builder for the feature, which adds its extraction time to the costs of the profile.
+     */
+    @SuppressWarnings("unchecked")
+    public DocumentBuilder createBuilder(String feature) {
+        DocumentBuilder builder;
+        if (SURF.equals(feature)) {
+            builder = new SurfDocumentBuilder();
+        } else {
+            Class c = classForFeature.get(feature);
+            builder = new GenericDocumentBuilder(c, GenericDocumentBuilder.fieldForClass.get(c), true, hashingMode);
+        }
+        return new TimedDocumentBuilder(builder, costs.get(feature));
+    }
+
+    /**
+     * Prints the average extraction time of each feature and its share of the whole extraction time.
+     */
+    public void printCosts() {
+        long total = 0;
+        for (Cost cost : costs.values()) {
+            total += cost.nanos.get();
+        }
+        if (total == 0) return;
+        System.out.println("Feature costs of profile " + name + ":");
+        for (Map.Entry<String, Cost> entry : costs.entrySet()) {
+            Cost cost = entry.getValue();
+            if (cost.images.get() == 0) continue;
+            System.out.println(String.format("  %-22s %10.2f ms per image %6.1f %% (%d images)", entry.getKey(),
+                    cost.nanos.get() / 1e6 / cost.images.get(), 100d * cost.nanos.get() / total, cost.images.get()));
+        }
+    }
+
+    private static List<String> split(String list) {
+        List<String> result = new ArrayList<String>();
+        if (list == null) return result;
+        for (String s : list.split(",")) {
+            if (s.trim().length() > 0) result.add(s.trim().toLowerCase());
+        }
+        return result;
+    }
+
+    /**
+     * Runs the global feature builders on one copy of the image scaled to GenericDocumentBuilder.MAX_IMAGE_DIMENSION,
+     * so the builders don't scale it each on their own.
+     */
+    static class GlobalFeaturesBuilder extends AbstractDocumentBuilder {
+        private final List<DocumentBuilder> builders;
+        private final Cost cost;
+        private final ImageScaler scaler = new ImageScaler();
+
+        GlobalFeaturesBuilder(List<DocumentBuilder> builders, Cost cost) {
+            this.builders = builders;
+            this.cost = cost;
+        }
+
+        public Field[] createDescriptorFields(BufferedImage image) {
+            long t = System.nanoTime();
+            BufferedImage scaled = scaler.scale(image, GenericDocumentBuilder.MAX_IMAGE_DIMENSION);
+            if (scaled != image) {
+                cost.nanos.addAndGet(System.nanoTime() - t);
+                cost.images.incrementAndGet();
+            }
+            List<Field> fields = new ArrayList<Field>();
+            for (DocumentBuilder builder : builders) {
+                for (Field field : builder.createDescriptorFields(scaled)) {
+                    if (field != null) fields.add(field);
+                }
+            }
+            return fields.toArray(new Field[fields.size()]);
+        }
+
+        public Document createDocument(BufferedImage image, String identifier) {
+            Document doc = new Document();
+            if (identifier != null) {
+                doc.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, identifier, Field.Store.YES));
+            }
+            for (Field field : createDescriptorFields(image)) {
+                doc.add(field);
+            }
+            return doc;
+        }
+    }
+
+    static class Cost {
+        final AtomicLong nanos = new AtomicLong();
+        final AtomicLong images = new AtomicLong();
+    }
+
+    /**
+     * Measures the time of the wrapped builder.
+     */
+    static class TimedDocumentBuilder extends AbstractDocumentBuilder {
+        private final DocumentBuilder builder;
+        private final Cost cost;
+
+        TimedDocumentBuilder(DocumentBuilder builder, Cost cost) {
+            this.builder = builder;
+            this.cost = cost;
+        }
+
+        public Field[] createDescriptorFields(BufferedImage image) {
+            long t = System.nanoTime();
+            try {
+                return builder.createDescriptorFields(image);
+            } finally {
+                cost.nanos.addAndGet(System.nanoTime() - t);
+                cost.images.incrementAndGet();
+            }
+        }
+
+        public Document createDocument(BufferedImage image, String identifier) throws FileNotFoundException {
+            long t = System.nanoTime();
+            try {
+                return builder.createDocument(image, identifier);
+            } finally {
+                cost.nanos.addAndGet(System.nanoTime() - t);
+                cost.images.incrementAndGet();
+            }
+        }
+    }
+}
@@ -11,6 +11,7 @@ import org.apache.lucene.document.*;
 
 
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.logging.Logger;
@@ -41,6 +42,12 @@ public class GenericDocumentBuilder extends AbstractDocumentBuilder {
 
     public static final String HASH_FIELD_SUFFIX = "_hash";
 
+    private static boolean lshHashFunctionsRead = false;
+    // BitSampling handles feature vectors up to this length, LSH only up to the length of its hash functions.
+    private static final int MAX_BIT_SAMPLING_DIMENSIONS = 3100;
+    private static int lshDimensions = 0;
+    private boolean hashWarningPrinted = false;
+
 
 
     static {
@@ -176,6 +183,39 @@ public class GenericDocumentBuilder extends AbstractDocumentBuilder {
         hashingEnabled = hashing;
     }
 
+    /**
+     * Creating a new DocumentBuilder based on a class based on the interface {@link net.semanticmetadata.lire.imageanalysis.LireFeature}
+     *
+     * @param descriptorClass has to implement {@link net.semanticmetadata.lire.imageanalysis.LireFeature}
+     * @param fieldName       The hashFunctionsFileName of the field, where the feature vector is stored.
+     * @param hashing         set to true is you want to create an additional field for hashes.
+     * @param mode            the hashing mode you want to use, bit sampling or the vector based LSH version.
+     */
+    public GenericDocumentBuilder(Class<? extends LireFeature> descriptorClass, String fieldName, boolean hashing, HashingMode mode) {
+        this.descriptorClass = descriptorClass;
+        this.fieldName = fieldName;
+        this.hashingMode = mode;
+        hashingEnabled = hashing;
+        if (hashing && mode == HashingMode.LSH) readLshHashFunctions();
+    }
+
+    /**
+     * The LSH hash functions are not read in the static block, as they have to be generated first.
+     * Processes sharing the working directory must not generate them concurrently, call this before they start.
+     */
+    static synchronized void readLshHashFunctions() {
+        if (lshHashFunctionsRead) return;
+        try {
+            if (!new File("lshHashFunctions.obj").exists()) LocalitySensitiveHashing.generateHashFunctions();
+            double[][] hashA = LocalitySensitiveHashing.readHashFunctions();
+            lshDimensions = hashA[0].length;
+            lshHashFunctionsRead = true;
+        } catch (IOException e) {
+            System.err.println("Could not read LSH hashes from file lshHashFunctions.obj.");
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Creating a new DocumentBuilder based on a class based on the interface {@link net.semanticmetadata.lire.imageanalysis.LireFeature}
      *
@@ -218,7 +258,8 @@ public class GenericDocumentBuilder extends AbstractDocumentBuilder {
             // if BitSampling is an issue we add a field with the given hashFunctionsFileName and the suffix "hash":
             if (hashingEnabled) {
                 // TODO: check eventually if there is a more compressed string version of the integers. i.e. the hex string
-                if (lireFeature.getDoubleHistogram().length <= 3100) {
+                int maxDimensions = (hashingMode == HashingMode.BitSampling) ? MAX_BIT_SAMPLING_DIMENSIONS : lshDimensions;
+                if (lireFeature.getDoubleHistogram().length <= maxDimensions) {
                     int[] hashes;
                     if (hashingMode == HashingMode.BitSampling) {
                         hashes = BitSampling.generateHashes(lireFeature.getDoubleHistogram());
@@ -226,8 +267,12 @@ public class GenericDocumentBuilder extends AbstractDocumentBuilder {
                         hashes = LocalitySensitiveHashing.generateHashes(lireFeature.getDoubleHistogram());
                     }
                     result[1] = new TextField(fieldName + HASH_FIELD_SUFFIX, arrayToString(hashes), Field.Store.YES);
-                } else
-                    System.err.println("Could not create hashes, feature vector too long: " + lireFeature.getDoubleHistogram().length + " (" + lireFeature.getClass().getName() + ")");
+                } else {
+                    if (!hashWarningPrinted) System.err.println("Could not create " + hashingMode + " hashes, feature vector too long: " + lireFeature.getDoubleHistogram().length + " (" + lireFeature.getClass().getName() + ")");
+                    hashWarningPrinted = true;
+                    // the document keeps the feature, it's just not found by the hash search.
+                    result = new Field[]{result[0]};
+                }
             }
         } catch (InstantiationException e) {
             e.printStackTrace();
@@ -0,0 +1,337 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Measures the retrieval quality and speed of the hash based search on an existing index. For a sample
+ * of query images, candidates are retrieved by the hash terms (the _hash fields of the global features and
+ * the SURF visual words), reranked by the stored features and compared to an exhaustive search over all
+ * documents. Reported are recall@k, the number of candidates matching the hash query and the latency
+ * percentiles of both searches.
+ * <p/>
+ * The exhaustive search streams over the documents once per feature for all the queries, so the memory
+ * use doesn't depend on the index size. Its latency counts the distance computations only, it is a lower bound.
+ */
+public class HashingEvaluation {
+    private String indexPath;
+    private int numberOfQueries = 100;
+    private int k = 10;
+    private int numberOfCandidates = 500;
+    private long seed = 42;
+
+    /**
+     * @param indexPath the index created by the index step.
+     */
+    public HashingEvaluation(String indexPath) {
+        this.indexPath = indexPath;
+    }
+
+    public void setNumberOfQueries(int numberOfQueries) {
+        this.numberOfQueries = Math.max(1, numberOfQueries);
+    }
+
+    public void setK(int k) {
+        this.k = Math.max(1, k);
+    }
+
+    /**
+     * @param numberOfCandidates number of documents retrieved by the hash query, which are reranked.
+     */
+    public void setNumberOfCandidates(int numberOfCandidates) {
+        this.numberOfCandidates = Math.max(1, numberOfCandidates);
+    }
+
+    public void run() throws IOException {
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+        IndexSearcher searcher = new IndexSearcher(reader);
+        BooleanQuery.setMaxClauseCount(Math.max(BooleanQuery.getMaxClauseCount(), 10000));
+
+        List<Feature> features = new ArrayList<Feature>();
+        for (Map.Entry<String, Class> entry : GenericDocumentBuilder.classForField.entrySet()) {
+            if (MultiFields.getTerms(reader, entry.getKey() + GenericDocumentBuilder.HASH_FIELD_SUFFIX) != null) {
+                features.add(new GlobalFeature(entry.getKey(), entry.getValue()));
+            }
+        }
+        if (MultiFields.getTerms(reader, DocumentBuilder.FIELD_NAME_SURF_VISUAL_WORDS) != null) {
+            features.add(new VisualWordsFeature());
+        }
+        if (features.isEmpty()) {
+            System.out.println("No hashed features found in " + indexPath + ".");
+            return;
+        }
+
+        System.out.println(String.format("%-28s %10s %12s %26s %26s", "Feature", "recall@" + k, "candidates", "hash p50/p90/p99 [ms]", "exhaustive p50/p90/p99 [ms]"));
+        for (Feature feature : features) {
+            evaluate(feature, reader, searcher);
+        }
+        reader.close();
+    }
+
+    private void evaluate(Feature feature, IndexReader reader, IndexSearcher searcher) throws IOException {
+        Set<String> fieldsToLoad = new HashSet<String>(Arrays.asList(feature.storedFields()));
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        // reservoir sample of the query documents, the first pass keeps only them in memory.
+        Random random = new Random(seed);
+        int[] sample = new int[numberOfQueries];
+        int docsWithFeature = 0;
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            if (feature.load(reader.document(i, fieldsToLoad)) == null) continue;
+            if (docsWithFeature < sample.length) {
+                sample[docsWithFeature] = i;
+            } else {
+                int j = random.nextInt(docsWithFeature + 1);
+                if (j < sample.length) sample[j] = i;
+            }
+            docsWithFeature++;
+        }
+        if (docsWithFeature < 2) return;
+
+        int queries = Math.min(numberOfQueries, docsWithFeature);
+        Object[] queryFeatures = new Object[queries];
+        TopK[] exhaustive = new TopK[queries];
+        for (int q = 0; q < queries; q++) {
+            queryFeatures[q] = feature.load(reader.document(sample[q], fieldsToLoad));
+            exhaustive[q] = new TopK(k);
+        }
+        // the exhaustive search of all queries in a second pass, streaming over the documents.
+        long[] exhaustiveNanos = new long[queries];
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            Object candidate = feature.load(reader.document(i, fieldsToLoad));
+            if (candidate == null) continue;
+            for (int q = 0; q < queries; q++) {
+                if (i == sample[q]) continue;
+                long t = System.nanoTime();
+                exhaustive[q].offer(i, feature.distance(queryFeatures[q], candidate));
+                exhaustiveNanos[q] += System.nanoTime() - t;
+            }
+        }
+
+        double recallSum = 0;
+        long candidatesSum = 0;
+        double[] hashTimes = new double[queries];
+        double[] exhaustiveTimes = new double[queries];
+        for (int q = 0; q < queries; q++) {
+            int queryDoc = sample[q];
+            Object query = queryFeatures[q];
+            exhaustiveTimes[q] = exhaustiveNanos[q] / 1000000d;
+
+            long t = System.nanoTime();
+            BooleanQuery bq = new BooleanQuery();
+            for (String term : feature.queryTerms(reader.document(queryDoc, fieldsToLoad))) {
+                bq.add(new BooleanClause(new TermQuery(new Term(feature.termField(), term)), BooleanClause.Occur.SHOULD));
+            }
+            TopDocs candidates = searcher.search(bq, numberOfCandidates);
+            TopK hashed = new TopK(k);
+            for (ScoreDoc sd : candidates.scoreDocs) {
+                if (sd.doc == queryDoc) continue;
+                Object candidate = feature.load(reader.document(sd.doc, fieldsToLoad));
+                if (candidate != null) hashed.offer(sd.doc, feature.distance(query, candidate));
+            }
+            hashTimes[q] = (System.nanoTime() - t) / 1000000d;
+            candidatesSum += candidates.totalHits;
+
+            // ties in the distances make the exact documents ambiguous, so we count the results as good as the k-th best.
+            int expected = exhaustive[q].size();
+            int found = 0;
+            for (float distance : hashed.distances()) {
+                if (distance <= exhaustive[q].worst()) found++;
+            }
+            recallSum += (expected > 0) ? (double) Math.min(found, expected) / expected : 1d;
+        }
+        System.out.println(String.format("%-28s %10.3f %12d %26s %26s", feature.name(), recallSum / queries, candidatesSum / queries,
+                percentiles(hashTimes), percentiles(exhaustiveTimes)));
+    }
+
+    private static String percentiles(double[] times) {
+        double[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return String.format("%.2f / %.2f / %.2f", percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99));
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    /**
+     * Keeps the k documents with the smallest distances.
+     */
+    static class TopK {
+        private final int k;
+        private final PriorityQueue<float[]> queue;
+
+        TopK(int k) {
+            this.k = k;
+            // the worst of the best k on top.
+            this.queue = new PriorityQueue<float[]>(k + 1, new Comparator<float[]>() {
+                public int compare(float[] o1, float[] o2) {
+                    return Float.compare(o2[1], o1[1]);
+                }
+            });
+        }
+
+        void offer(int doc, float distance) {
+            if (queue.size() < k) {
+                queue.add(new float[]{doc, distance});
+            } else if (distance < queue.peek()[1]) {
+                queue.poll();
+                queue.add(new float[]{doc, distance});
+            }
+        }
+
+        int size() {
+            return queue.size();
+        }
+
+        float worst() {
+            return queue.isEmpty() ? Float.MAX_VALUE : queue.peek()[1];
+        }
+
+        List<Float> distances() {
+            List<Float> result = new ArrayList<Float>(queue.size());
+            for (float[] entry : queue) {
+                result.add(entry[1]);
+            }
+            return result;
+        }
+    }
+
+    abstract static class Feature {
+        abstract String name();
+
+        /**
+         * @return the field searched by the hash query.
+         */
+        abstract String termField();
+
+        abstract String[] storedFields();
+
+        /**
+         * @return the feature of the document or null if it doesn't have one.
+         */
+        abstract Object load(Document doc);
+
+        abstract float distance(Object a, Object b);
+
+        abstract String[] queryTerms(Document doc);
+    }
+
+    /**
+     * A global feature created by the {@link GenericDocumentBuilder} with hashing enabled.
+     */
+    static class GlobalFeature extends Feature {
+        private final String fieldName;
+        private final Class descriptorClass;
+
+        GlobalFeature(String fieldName, Class descriptorClass) {
+            this.fieldName = fieldName;
+            this.descriptorClass = descriptorClass;
+        }
+
+        String name() {
+            return descriptorClass.getSimpleName();
+        }
+
+        String termField() {
+            return fieldName + GenericDocumentBuilder.HASH_FIELD_SUFFIX;
+        }
+
+        String[] storedFields() {
+            return new String[]{fieldName, termField()};
+        }
+
+        Object load(Document doc) {
+            BytesRef bin = doc.getBinaryValue(fieldName);
+            if (bin == null) return null;
+            try {
+                LireFeature feature = (LireFeature) descriptorClass.newInstance();
+                feature.setByteArrayRepresentation(bin.bytes, bin.offset, bin.length);
+                return feature;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        float distance(Object a, Object b) {
+            return ((LireFeature) a).getDistance((LireFeature) b);
+        }
+
+        String[] queryTerms(Document doc) {
+            String hashes = doc.get(termField());
+            return (hashes == null) ? new String[0] : hashes.trim().split(" ");
+        }
+    }
+
+    /**
+     * The SURF visual words, reranked by the L1 distance of the visual word histograms.
+     */
+    static class VisualWordsFeature extends Feature {
+        String name() {
+            return "SURF visual words";
+        }
+
+        String termField() {
+            return DocumentBuilder.FIELD_NAME_SURF_VISUAL_WORDS;
+        }
+
+        String[] storedFields() {
+            return new String[]{termField()};
+        }
+
+        Object load(Document doc) {
+            String words = doc.get(termField());
+            if (words == null) return null;
+            Map<Integer, Integer> histogram = new HashMap<Integer, Integer>();
+            for (String word : words.trim().split(" ")) {
+                if (word.length() < 2) continue;
+                Integer w = Integer.valueOf(word.substring(1));
+                Integer count = histogram.get(w);
+                histogram.put(w, (count == null) ? 1 : count + 1);
+            }
+            return histogram;
+        }
+
+        @SuppressWarnings("unchecked")
+        float distance(Object a, Object b) {
+            Map<Integer, Integer> ha = (Map<Integer, Integer>) a, hb = (Map<Integer, Integer>) b;
+            float distance = 0;
+            for (Map.Entry<Integer, Integer> entry : ha.entrySet()) {
+                Integer other = hb.get(entry.getKey());
+                distance += Math.abs(entry.getValue() - ((other == null) ? 0 : other));
+            }
+            for (Map.Entry<Integer, Integer> entry : hb.entrySet()) {
+                if (!ha.containsKey(entry.getKey())) distance += entry.getValue();
+            }
+            return distance;
+        }
+
+        String[] queryTerms(Document doc) {
+            String words = doc.get(termField());
+            if (words == null) return new String[0];
+            Set<String> terms = new LinkedHashSet<String>(Arrays.asList(words.trim().split(" ")));
+            return terms.toArray(new String[terms.size()]);
+        }
+    }
+}
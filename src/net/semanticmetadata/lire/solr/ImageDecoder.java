@@ -0,0 +1,106 @@
+package net.semanticmetadata.lire.solr;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Decodes images from byte arrays like ImageIO.read, but with less allocation: the image readers are
+ * reused for all images of the same format, the stream is cached in memory instead of a temporary
+ * file and, if a {@link RasterPool} is given, the images are decoded into pooled images of the same
+ * size and type. Instances are not thread safe, use one decoder per thread.
+ */
+public class ImageDecoder {
+    private final RasterPool rasterPool;
+    private final Map<ImageReaderSpi, ImageReader> readers = new HashMap<ImageReaderSpi, ImageReader>();
+
+    /**
+     * @param rasterPool pool of decoding destinations, can be null.
+     */
+    public ImageDecoder(RasterPool rasterPool) {
+        this.rasterPool = rasterPool;
+    }
+
+    /**
+     * @return the decoded image or null if no reader supports the format.
+     *         Return the image to the raster pool when it is no longer used.
+     * @throws IOException
+     */
+    public BufferedImage decode(byte[] buffer, int length) throws IOException {
+        ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(buffer, 0, length));
+        try {
+            ImageReader reader = reader(iis);
+            if (reader == null) return null;
+            reader.setInput(iis, true, true);
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                BufferedImage destination = null;
+                if (rasterPool != null) {
+                    Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                    if (types.hasNext()) {
+                        int type = types.next().getBufferedImageType();
+                        if (RasterPool.isPoolable(type)) {
+                            destination = rasterPool.acquire(reader.getWidth(0), reader.getHeight(0), type);
+                        }
+                    }
+                }
+                if (destination != null) {
+                    param.setDestination(destination);
+                    try {
+                        return reader.read(0, param);
+                    } catch (IllegalArgumentException e) {
+                        // the destination does not fit after all, we decode into a new image.
+                        param.setDestination(null);
+                        iis.seek(0);
+                        reader.setInput(iis, true, true);
+                    }
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.reset();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * Disposes the cached readers.
+     */
+    public void dispose() {
+        for (ImageReader reader : readers.values()) {
+            reader.dispose();
+        }
+        readers.clear();
+    }
+
+    /**
+     * Finds a reader for the stream, unlike ImageIO.getImageReaders it doesn't create a new reader for each image.
+     */
+    private ImageReader reader(ImageInputStream iis) throws IOException {
+        for (Map.Entry<ImageReaderSpi, ImageReader> entry : readers.entrySet()) {
+            if (entry.getKey().canDecodeInput(iis)) return entry.getValue();
+        }
+        Iterator<ImageReaderSpi> spis = IIORegistry.getDefaultInstance().getServiceProviders(ImageReaderSpi.class, true);
+        while (spis.hasNext()) {
+            ImageReaderSpi spi = spis.next();
+            if (spi.canDecodeInput(iis)) {
+                ImageReader reader = spi.createReaderInstance();
+                readers.put(spi, reader);
+                return reader;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,45 @@
+package net.semanticmetadata.lire.solr;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * Scales images like ImageUtils.scaleImage of LIRE, but into a reused destination image, which is
+ * kept as long as the scaled images have the same size. Instances are not thread safe, use one scaler
+ * per thread.
+ */
+public class ImageScaler {
+    private BufferedImage destination;
+
+    /**
+     * @return the image itself if it is not bigger than maxDimension, otherwise the scaled image.
+     *         It is overwritten by the next call.
+     */
+    public BufferedImage scale(BufferedImage image, int maxDimension) {
+        double width = image.getWidth();
+        double height = image.getHeight();
+        double factor = (width > height) ? maxDimension / width : maxDimension / height;
+        if (factor >= 1) return image;
+        int w = (int) (width * factor);
+        int h = (int) (height * factor);
+        Graphics2D g;
+        if (destination != null && destination.getWidth() == w && destination.getHeight() == h) {
+            g = destination.createGraphics();
+            // a new image is black, transparent pixels of the source must not show the previous image.
+            g.setColor(Color.BLACK);
+            g.fillRect(0, 0, w, h);
+        } else {
+            destination = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            g = destination.createGraphics();
+        }
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return destination;
+    }
+}
@@ -0,0 +1,273 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.indexing.LireCustomCodec;
+import net.semanticmetadata.lire.utils.LuceneUtils;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Indexes a list of images with several worker processes, so a single JVM's heap and garbage
+ * collector don't limit the indexing speed. The list is split into leases, each worker process
+ * indexes one lease into its own index directory. Leases of workers, which crashed or ran out of
+ * time, are handed to another worker. At the end all the lease indexes are merged into the main index.
+ * The images of leases, which failed too often, are written to a list next to the work directory, so
+ * they can be indexed by another run.
+ * <p/>
+ * A worker is started as <code>java -cp ... net.semanticmetadata.lire.solr.Main worker &lt;lease&gt; &lt;index&gt;</code>
+ * and reports success by its exit code.
+ */
+public class IndexCoordinator {
+    private File imageList;
+    private String indexPath;
+    private File workDirectory;
+    private File failedList;
+    private int numberOfWorkers = 2;
+    private int leaseSize = 10000;
+    private int maxAttempts = 3;
+    // in ms, 0 means no timeout
+    private long leaseTimeout = 120 * 60 * 1000;
+    private String workerHeap = "";
+    // all xx ms the workers are checked
+    private int pollInterval = 500;
+    private int mergedLeases = 0;
+
+    /**
+     * @param imageList     a file containing a list of images, one per line
+     * @param indexPath     the index, where the leases are merged to. Will be appended or created if not existing.
+     * @param workDirectory directory for the lease lists and lease indexes, it is deleted after the merge.
+     */
+    public IndexCoordinator(File imageList, String indexPath, File workDirectory) {
+        this.imageList = imageList;
+        this.indexPath = indexPath;
+        this.workDirectory = workDirectory;
+        this.failedList = new File(workDirectory.getPath() + "-failed.txt");
+    }
+
+    public void setNumberOfWorkers(int numberOfWorkers) {
+        this.numberOfWorkers = Math.max(1, numberOfWorkers);
+    }
+
+    /**
+     * @param leaseSize number of images handed to a worker at once.
+     */
+    public void setLeaseSize(int leaseSize) {
+        this.leaseSize = Math.max(1, leaseSize);
+    }
+
+    /**
+     * @param maxAttempts how many times a lease is started before it is given up.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * @param leaseTimeout time in ms after which a worker is killed and its lease reassigned, 0 means no timeout.
+     */
+    public void setLeaseTimeout(long leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    /**
+     * @param workerHeap maximum heap of a worker, e.g. "2g". Empty for the JVM default.
+     */
+    public void setWorkerHeap(String workerHeap) {
+        this.workerHeap = workerHeap.trim();
+    }
+
+    /**
+     * @return the list of the images of the failed leases, written by run() if some leases failed.
+     */
+    public File getFailedList() {
+        return failedList;
+    }
+
+    /**
+     * @return number of leases merged into the index by run().
+     */
+    public int getMergedLeases() {
+        return mergedLeases;
+    }
+
+    /**
+     * Indexes all the leases and merges them into the index.
+     *
+     * @return true if all leases were indexed, false if some of them failed maxAttempts times.
+     *         The leases, which were indexed, are merged in both cases.
+     */
+    public boolean run() throws IOException, InterruptedException {
+        if (workDirectory.exists()) FileUtils.deleteDirectory(workDirectory);
+        workDirectory.mkdirs();
+        LinkedList<Lease> pending = createLeases();
+        List<Lease> running = new LinkedList<Lease>();
+        List<Lease> finished = new ArrayList<Lease>();
+        List<Lease> failed = new ArrayList<Lease>();
+        System.out.println("Indexing " + pending.size() + " leases with " + numberOfWorkers + " workers.");
+        long l = System.currentTimeMillis();
+
+        while (!pending.isEmpty() || !running.isEmpty()) {
+            while (running.size() < numberOfWorkers && !pending.isEmpty()) {
+                Lease lease = pending.removeFirst();
+                lease.start();
+                running.add(lease);
+            }
+            Thread.sleep(pollInterval);
+            for (Iterator<Lease> iterator = running.iterator(); iterator.hasNext(); ) {
+                Lease lease = iterator.next();
+                Integer exitValue = lease.exitValue();
+                if (exitValue == null) {
+                    if (leaseTimeout > 0 && System.currentTimeMillis() - lease.started > leaseTimeout) {
+                        System.err.println("[IndexCoordinator] Lease " + lease.id + " timed out.");
+                        lease.process.destroy();
+                        lease.process.waitFor();
+                        exitValue = -1;
+                    } else {
+                        continue;
+                    }
+                }
+                iterator.remove();
+                if (exitValue == 0) {
+                    finished.add(lease);
+                    System.out.println("Lease " + lease.id + " finished (" + (finished.size() + failed.size()) + " of " + (finished.size() + failed.size() + running.size() + pending.size()) + ").");
+                } else if (lease.attempts < maxAttempts) {
+                    System.err.println("[IndexCoordinator] Lease " + lease.id + " failed with exit code " + exitValue + ", reassigning it.");
+                    pending.add(lease);
+                } else {
+                    System.err.println("[IndexCoordinator] Lease " + lease.id + " failed " + lease.attempts + " times, giving up: " + lease.list.getPath());
+                    failed.add(lease);
+                }
+            }
+        }
+        long l1 = System.currentTimeMillis() - l;
+        System.out.println("Indexed " + finished.size() + " leases in " + l1 / 1000 + " seconds, " + failed.size() + " failed.");
+
+        merge(finished);
+        // the work directory is deleted by the next run, so the failed images are kept outside of it.
+        if (!failed.isEmpty()) {
+            writeFailedList(failed);
+        } else if (!failedList.getCanonicalFile().equals(imageList.getCanonicalFile())) {
+            // a list left by an earlier run, unless it is the input of this run.
+            failedList.delete();
+        }
+        FileUtils.deleteDirectory(workDirectory);
+        return failed.isEmpty();
+    }
+
+    private void writeFailedList(List<Lease> leases) throws IOException {
+        PrintWriter pw = new PrintWriter(new FileWriter(failedList));
+        try {
+            for (Lease lease : leases) {
+                BufferedReader br = new BufferedReader(new FileReader(lease.list));
+                try {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        pw.println(line);
+                    }
+                } finally {
+                    br.close();
+                }
+            }
+        } finally {
+            pw.close();
+        }
+        System.err.println("[IndexCoordinator] The images of the failed leases are listed in " + failedList.getPath());
+    }
+
+    private LinkedList<Lease> createLeases() throws IOException {
+        LinkedList<Lease> leases = new LinkedList<Lease>();
+        BufferedReader br = new BufferedReader(new FileReader(imageList));
+        PrintWriter pw = null;
+        int count = 0;
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.trim().length() <= 3) continue;
+            if (count % leaseSize == 0) {
+                if (pw != null) pw.close();
+                Lease lease = new Lease(leases.size());
+                leases.add(lease);
+                pw = new PrintWriter(new FileWriter(lease.list));
+            }
+            pw.println(line.trim());
+            count++;
+        }
+        if (pw != null) pw.close();
+        br.close();
+        return leases;
+    }
+
+    private void merge(List<Lease> leases) throws IOException {
+        if (leases.isEmpty()) return;
+        System.out.println("Merging " + leases.size() + " lease indexes into " + indexPath + ".");
+        IndexWriterConfig config = new IndexWriterConfig(LuceneUtils.LUCENE_VERSION, new StandardAnalyzer(LuceneUtils.LUCENE_VERSION));
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        config.setCodec(new LireCustomCodec());
+        IndexWriter writer = new IndexWriter(FSDirectory.open(new File(indexPath)), config);
+        Directory[] directories = new Directory[leases.size()];
+        for (int i = 0; i < directories.length; i++) {
+            directories[i] = FSDirectory.open(leases.get(i).index);
+        }
+        writer.addIndexes(directories);
+        writer.commit();
+        writer.close();
+        for (Directory directory : directories) {
+            directory.close();
+        }
+        mergedLeases = leases.size();
+    }
+
+    class Lease {
+        final int id;
+        final File list;
+        final File index;
+        int attempts = 0;
+        long started;
+        Process process;
+
+        Lease(int id) {
+            this.id = id;
+            this.list = new File(workDirectory, String.format("lease-%05d.txt", id));
+            this.index = new File(workDirectory, String.format("lease-%05d", id));
+        }
+
+        void start() throws IOException {
+            attempts++;
+            List<String> command = new ArrayList<String>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            if (workerHeap.length() > 0) command.add("-Xmx" + workerHeap);
+            command.add("-Djava.awt.headless=true");
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Main.class.getName());
+            command.add("worker");
+            command.add(list.getPath());
+            command.add(index.getPath());
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.inheritIO();
+            started = System.currentTimeMillis();
+            // the worker overwrites the lease index, so the documents of a crashed attempt are dropped.
+            process = pb.start();
+        }
+
+        /**
+         * @return the exit value of the worker or null if it is still running.
+         */
+        Integer exitValue() {
+            try {
+                return process.exitValue();
+            } catch (IllegalThreadStateException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.ColorLayout;
+import net.semanticmetadata.lire.impl.ChainedDocumentBuilder;
+import net.semanticmetadata.lire.impl.SurfDocumentBuilder;
+import net.semanticmetadata.lire.indexing.LireCustomCodec;
+import net.semanticmetadata.lire.utils.FileUtils;
+import net.semanticmetadata.lire.utils.LuceneUtils;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+
+import javax.imageio.ImageIO;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs as a service and indexes new images as they appear, either in an inbox directory or
+ * appended to a list file. The extractors and the visual words vocabulary stay loaded, the
+ * documents are added to the local index and pushed to Solr in small batches, so new images
+ * are searchable within the given latency.
+ * <p/>
+ * Images found in an inbox directory are moved to a processed directory before their features are
+ * extracted, so the inbox holds the new images only and the indexed path stays valid. The processed
+ * files are appended to a log, so a restarted watcher continues where it stopped.
+ */
+public class IndexWatcher implements Runnable {
+    private File inbox;
+    private File processedDirectory;
+    private String indexPath;
+    private String solrCoreUrl;
+    private String clusterFile;
+    private File doneLog = new File("watch-done.txt");
+    private int numberOfThreads = 2;
+    private int maxBatchSize = 100;
+    // in ms, the documents are pushed at the latest after this time
+    private long maxLatency = 5000;
+    // in ms, the inbox is checked this often
+    private long pollInterval = 1000;
+    // in ms, files modified more recently are probably still being written
+    private long settleTime = 2000;
+    private volatile boolean running = true;
+
+    private VisualWordsAssigner assigner;
+    // the processed images of a list file, or the images left in the inbox directory, which are not picked up.
+    private Set<String> seen = new HashSet<String>();
+    // images moved to the processed directory by an earlier run, but not logged as done.
+    private LinkedList<String> recovered = new LinkedList<String>();
+    // bytes of the list file already read, up to the end of the last complete line.
+    private long listOffset = 0;
+    private ThreadLocal<ChainedDocumentBuilder> builders = new ThreadLocal<ChainedDocumentBuilder>() {
+        protected ChainedDocumentBuilder initialValue() {
+            ChainedDocumentBuilder builder = new ChainedDocumentBuilder();
+            addBuilders(builder);
+            return builder;
+        }
+    };
+
+    /**
+     * @param inbox       a directory, which is traversed recursively, or a file containing a list of images, one per line.
+     * @param indexPath   the local index, new documents are appended.
+     * @param solrCoreUrl the Solr core, which receives the new documents.
+     * @param clusterFile the visual words vocabulary, e.g. clusters-surf.dat, or null if the builders extract no SURF features.
+     */
+    public IndexWatcher(File inbox, String indexPath, String solrCoreUrl, String clusterFile) {
+        this.inbox = inbox;
+        this.indexPath = indexPath;
+        this.solrCoreUrl = solrCoreUrl;
+        this.clusterFile = clusterFile;
+        this.processedDirectory = new File(inbox.getPath() + "-processed");
+    }
+
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * @param maxLatency time in ms, after which extracted documents are pushed even if the batch is not full.
+     */
+    public void setMaxLatency(long maxLatency) {
+        this.maxLatency = Math.max(1, maxLatency);
+        this.pollInterval = Math.min(pollInterval, Math.max(1, maxLatency / 2));
+    }
+
+    public void setDoneLog(File doneLog) {
+        this.doneLog = doneLog;
+    }
+
+    /**
+     * @param processedDirectory where the images of an inbox directory are moved to, by default the inbox path with -processed appended.
+     */
+    public void setProcessedDirectory(File processedDirectory) {
+        this.processedDirectory = processedDirectory;
+    }
+
+    /**
+     * Overwrite this method to define the builders to be used within the watcher. The documents must
+     * contain the fields expected by {@link Main#createSolrDocument(org.apache.lucene.document.Document)}.
+     *
+     * @param builder
+     */
+    public void addBuilders(ChainedDocumentBuilder builder) {
+        builder.addBuilder(new SurfDocumentBuilder());
+        builder.addBuilder(new GenericDocumentBuilder(ColorLayout.class, DocumentBuilder.FIELD_NAME_COLORLAYOUT, true));
+    }
+
+    /**
+     * Stops the watcher. The documents extracted so far are pushed before run() returns.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    public void run() {
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        try {
+            if (clusterFile != null) assigner = new VisualWordsAssigner(clusterFile);
+            IndexWriterConfig config = new IndexWriterConfig(LuceneUtils.LUCENE_VERSION, new StandardAnalyzer(LuceneUtils.LUCENE_VERSION));
+            config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+            config.setCodec(new LireCustomCodec());
+            IndexWriter writer = new IndexWriter(FSDirectory.open(new File(indexPath)), config);
+            SolrServer server = new HttpSolrServer(solrCoreUrl);
+            readDoneLog();
+            if (inbox.isDirectory()) recover();
+            System.out.println("Watching " + inbox.getPath() + ", " + seen.size() + " images already processed, " + recovered.size() + " to recover.");
+
+            LinkedList<Future<Extraction>> inFlight = new LinkedList<Future<Extraction>>();
+            List<Extraction> batch = new ArrayList<Extraction>();
+            long oldest = 0, retryAt = 0;
+            while (running || !inFlight.isEmpty()) {
+                // limit the number of images waiting for extraction, the rest is picked up by the next scan.
+                if (running && inFlight.size() < numberOfThreads * maxBatchSize && batch.size() < maxBatchSize) {
+                    for (String path : scan(numberOfThreads * maxBatchSize - inFlight.size())) {
+                        inFlight.add(executor.submit(new Extraction(path)));
+                    }
+                }
+                for (Iterator<Future<Extraction>> iterator = inFlight.iterator(); iterator.hasNext(); ) {
+                    Future<Extraction> future = iterator.next();
+                    if (!future.isDone()) continue;
+                    iterator.remove();
+                    if (batch.isEmpty()) oldest = System.currentTimeMillis();
+                    batch.add(future.get());
+                }
+                long now = System.currentTimeMillis();
+                if (!batch.isEmpty() && now >= retryAt && (batch.size() >= maxBatchSize || now - oldest >= maxLatency || !running)) {
+                    if (flush(batch, writer, server)) batch.clear();
+                    else retryAt = now + maxLatency;
+                }
+                if (running || !inFlight.isEmpty()) Thread.sleep(pollInterval);
+            }
+            // last chance for a batch, which failed to be pushed.
+            if (!batch.isEmpty()) flush(batch, writer, server);
+            writer.close();
+            server.shutdown();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Pushes the batch to Solr, adds it to the local index and logs the files as processed.
+     *
+     * @return false if Solr could not be reached, the batch should be pushed again later.
+     */
+    private boolean flush(List<Extraction> batch, IndexWriter writer, SolrServer server) throws IOException {
+        List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>(batch.size());
+        for (Extraction extraction : batch) {
+            if (extraction.document != null) docs.add(Main.createSolrDocument(extraction.document));
+        }
+        if (!docs.isEmpty()) {
+            try {
+                // commitWithin lets Solr make the documents visible within the latency without a commit per batch.
+                server.add(docs, (int) maxLatency);
+            } catch (Exception e) {
+                System.err.println("[IndexWatcher] Could not push " + docs.size() + " documents to " + solrCoreUrl + ": " + e.getMessage());
+                return false;
+            }
+        }
+        PrintWriter log = new PrintWriter(new FileWriter(doneLog, true));
+        for (Extraction extraction : batch) {
+            if (extraction.document != null) writer.addDocument(extraction.document);
+            log.println(extraction.path);
+        }
+        writer.commit();
+        log.close();
+        System.out.println("Pushed " + docs.size() + " documents, " + (batch.size() - docs.size()) + " images failed.");
+        return true;
+    }
+
+    /**
+     * @return up to max new images from the inbox.
+     */
+    private List<String> scan(int max) throws IOException {
+        List<String> result = new ArrayList<String>();
+        if (inbox.isDirectory()) {
+            while (!recovered.isEmpty() && result.size() < max) {
+                result.add(recovered.removeFirst());
+            }
+            long settled = System.currentTimeMillis() - settleTime;
+            List<String> images = FileUtils.getAllImages(inbox, true);
+            if (images == null) return result;
+            for (String path : images) {
+                if (result.size() >= max) break;
+                if (seen.contains(path) || new File(path).lastModified() >= settled) continue;
+                try {
+                    result.add(moveToProcessed(new File(path)));
+                } catch (IOException e) {
+                    System.err.println("[IndexWatcher] Could not move " + path + " to " + processedDirectory.getPath() + ", skipping it: " + e.getMessage());
+                    seen.add(path);
+                }
+            }
+        } else if (inbox.exists()) {
+            RandomAccessFile list = new RandomAccessFile(inbox, "r");
+            try {
+                // the list was replaced by a shorter one, already processed images are skipped by seen.
+                if (list.length() < listOffset) listOffset = 0;
+                byte[] chunk = new byte[(int) Math.min(list.length() - listOffset, 1 << 20)];
+                list.seek(listOffset);
+                list.readFully(chunk);
+                // only lines ending with a newline are taken, the last one may still be written.
+                int start = 0;
+                for (int i = 0; i < chunk.length && result.size() < max; i++) {
+                    if (chunk[i] != '\n') continue;
+                    String line = new String(chunk, start, i - start, Charset.defaultCharset()).trim();
+                    start = i + 1;
+                    if (line.length() > 3 && seen.add(line)) result.add(line);
+                }
+                listOffset += start;
+            } finally {
+                list.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Moves an image from the inbox to the same relative path in the processed directory, a number is
+     * appended to the name if the path is taken.
+     *
+     * @return the canonical path of the moved image, like the paths listed by FileUtils.getAllImages.
+     */
+    private String moveToProcessed(File image) throws IOException {
+        String relative = inbox.getCanonicalFile().toURI().relativize(image.toURI()).getPath();
+        File target = new File(processedDirectory.getCanonicalFile(), relative);
+        String name = target.getName();
+        int dot = name.lastIndexOf('.');
+        for (int i = 1; target.exists(); i++) {
+            target = new File(target.getParentFile(), (dot > 0) ? name.substring(0, dot) + "-" + i + name.substring(dot) : name + "-" + i);
+        }
+        target.getParentFile().mkdirs();
+        Files.move(image.toPath(), target.toPath());
+        return target.getCanonicalPath();
+    }
+
+    /**
+     * Finds the images moved to the processed directory, but not logged as done by an earlier run. Images
+     * logged as done, which are still in the inbox, were processed before they were moved, they are left there.
+     * Afterwards only these images are remembered instead of the whole log.
+     */
+    private void recover() throws IOException {
+        Set<String> done = seen;
+        seen = new HashSet<String>();
+        List<String> inInbox = FileUtils.getAllImages(inbox, true);
+        if (inInbox != null) {
+            for (String path : inInbox) {
+                if (done.contains(path)) seen.add(path);
+            }
+        }
+        if (!processedDirectory.isDirectory()) return;
+        List<String> processed = FileUtils.getAllImages(processedDirectory, true);
+        if (processed == null) return;
+        for (String path : processed) {
+            if (!done.contains(path)) recovered.add(path);
+        }
+    }
+
+    private void readDoneLog() throws IOException {
+        if (!doneLog.exists()) return;
+        BufferedReader br = new BufferedReader(new FileReader(doneLog));
+        String line;
+        while ((line = br.readLine()) != null) {
+            seen.add(line.trim());
+        }
+        br.close();
+    }
+
+    /**
+     * Extracts the features of one image, the document is null if the image could not be indexed.
+     */
+    class Extraction implements Callable<Extraction> {
+        final String path;
+        Document document;
+
+        Extraction(String path) {
+            this.path = path;
+        }
+
+        public Extraction call() {
+            try {
+                BufferedImage img = ImageIO.read(new File(path));
+                if (img == null) throw new IOException("Unsupported image format.");
+                Document d = builders.get().createDocument(img, path);
+                if (assigner != null) assigner.assign(d);
+                document = d;
+            } catch (Exception e) {
+                System.err.println("[IndexWatcher] Could not handle file " + path + ": " + e.getMessage());
+            }
+            return this;
+        }
+    }
+}
@@ -5,18 +5,15 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.swing.ProgressMonitor;
 
 import net.semanticmetadata.lire.DocumentBuilder;
-import net.semanticmetadata.lire.imageanalysis.ColorLayout;
 import net.semanticmetadata.lire.imageanalysis.bovw.LocalFeatureHistogramBuilder;
 import net.semanticmetadata.lire.imageanalysis.bovw.SurfFeatureHistogramBuilder;
 import net.semanticmetadata.lire.impl.ChainedDocumentBuilder;
-import net.semanticmetadata.lire.impl.SurfDocumentBuilder;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.lucene.document.Document;
@@ -35,7 +32,7 @@ public class Main {
 
 	public static final void main(String[] args) {
 		
-		if (args.length == 2 && "index".equals(args[0])) {
+		if (args.length == 2) {
 			
 			if ("index".equals(args[0])) {
 				try {
@@ -47,9 +44,39 @@ public class Main {
 					e.printStackTrace();
 					System.exit(1);
 				}
+			} else if ("distindex".equals(args[0])) {
+				try {
+					createDistributedIndex(args[1]);
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+			} else if ("watch".equals(args[0])) {
+				watch(args[1]);
+			} else if ("backfill".equals(args[0])) {
+				try {
+					backfill(args[1]);
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
 			} else {
 				printHelp();
 			}
+		} else if (args.length == 3 && "worker".equals(args[0])) {
+			// Started by the IndexCoordinator, the exit code tells whether the lease was indexed.
+			// A thread killed by an error, e.g. OutOfMemoryError, would leave the lease incomplete or hang the worker.
+			Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+				public void uncaughtException(Thread t, Throwable e) {
+					System.err.println("[worker] " + t.getName() + " died: " + e);
+					Runtime.getRuntime().halt(1);
+				}
+			});
+			boolean success = indexImages(getProperties(), args[1], args[2], true);
+			System.exit(success ? 0 : 1);
 		} else if (args.length == 1) {
 			if ("import".equals(args[0])) {
 				try {
@@ -61,9 +88,23 @@ public class Main {
 					e.printStackTrace();
 					System.exit(1);
 				}
+			} else if ("evaluate".equals(args[0])) {
+				try {
+					evaluate();
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+			} else if ("backfill".equals(args[0])) {
+				try {
+					backfill(null);
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
 			} else if ("visualwords".equals(args[0])) {
 				try {
-					visualWords();
+					visualWords(getProperties());
 				} catch (IOException e) {
 					e.printStackTrace();
 					System.exit(1);
@@ -77,86 +118,243 @@ public class Main {
 	}
 	
 	private static void createIndex(String imagesFile) throws FileNotFoundException, IOException {
-		int numberOfThreads = Integer.parseInt(getProperties().getProperty("numberOfThreads"));
-		ParallelIndexer indexer = new ParallelIndexer(numberOfThreads, "index", new File(imagesFile)) {
-			public void addBuilders(ChainedDocumentBuilder builder) {
-				builder.addBuilder(new SurfDocumentBuilder());
-				builder.addBuilder(new GenericDocumentBuilder(ColorLayout.class, DocumentBuilder.FIELD_NAME_COLORLAYOUT, true));
-			}
-		};
-		indexer.run();
+		Properties prop = getProperties();
+		indexImages(prop, imagesFile, "index", false);
 		
 		System.out.println("Indexing finished");
-		System.out.println("Creating visual words...");
+		createVisualWords(prop);
+	}
+	
+	private static void backfill(String selectionFile) throws IOException {
+		Properties prop = getProperties();
+		FeatureProfile profile = FeatureProfile.fromProperties(prop);
+		if (profile.getDeferredFeatures().isEmpty()) {
+			System.out.println("The profile " + profile.getName() + " has no deferred features, see deferredFeatures in config.properties.");
+			return;
+		}
+		FeatureBackfill backfill = new FeatureBackfill("index", profile);
+		backfill.setNumberOfThreads(Integer.parseInt(prop.getProperty("backfillThreads", "1")));
+		if (selectionFile != null) backfill.setSelection(new File(selectionFile));
+		// a new vocabulary would invalidate the visual words already in solr, so an existing one is kept.
+		boolean vocabulary = new File("clusters-surf.dat").exists();
+		if (profile.isDeferred(FeatureProfile.SURF) && vocabulary) {
+			backfill.setVisualWordsAssigner(new VisualWordsAssigner("clusters-surf.dat"));
+		}
+		backfill.run();
+		profile.printCosts();
 		
-		IndexReader ir = DirectoryReader.open(FSDirectory.open(new File("index")));
-		LocalFeatureHistogramBuilder.DELETE_LOCAL_FEATURES = false;
-		int numDocsForVocabulary = Integer.parseInt(getProperties().getProperty("numDocsForVocabulary"));
-		int numClusters = Integer.parseInt(getProperties().getProperty("numClusters"));
-		SurfFeatureHistogramBuilder sh = new SurfFeatureHistogramBuilder(ir, numDocsForVocabulary, numClusters);
-		sh.setProgressMonitor(new ProgressMonitor(null, "", "", 0, 100));
-		sh.index();
-		System.out.println("Creating visual words finished.");
+		System.out.println("Backfill finished");
+		if (profile.isDeferred(FeatureProfile.SURF) && !vocabulary) {
+			if (selectionFile != null) {
+				System.out.println("There is no vocabulary yet, it would be sampled from the selected images only.");
+				System.out.println("Create it by the visualwords command once the backfill covers enough images.");
+				return;
+			}
+			System.out.println("Creating visual words...");
+			visualWords(prop);
+			System.out.println("Creating visual words finished.");
+		}
+	}
+	
+	private static void createDistributedIndex(String imagesFile) throws IOException, InterruptedException {
+		Properties prop = getProperties();
+		// the workers must share the LSH hash functions, so they are generated before the first worker starts.
+		if (GenericDocumentBuilder.HashingMode.valueOf(prop.getProperty("hashingMode", "BitSampling")) == GenericDocumentBuilder.HashingMode.LSH) {
+			GenericDocumentBuilder.readLshHashFunctions();
+		}
+		IndexCoordinator coordinator = new IndexCoordinator(new File(imagesFile), "index", new File("index-leases"));
+		coordinator.setNumberOfWorkers(Integer.parseInt(prop.getProperty("numberOfWorkers", "2")));
+		coordinator.setLeaseSize(Integer.parseInt(prop.getProperty("leaseSize", "10000")));
+		coordinator.setMaxAttempts(Integer.parseInt(prop.getProperty("maxLeaseAttempts", "3")));
+		coordinator.setLeaseTimeout(Long.parseLong(prop.getProperty("leaseTimeout", "120")) * 60 * 1000);
+		coordinator.setWorkerHeap(prop.getProperty("workerHeap", ""));
+		boolean success = coordinator.run();
+		
+		System.out.println("Indexing finished");
+		// nothing was merged if all the leases failed, the index may not even exist.
+		if (coordinator.getMergedLeases() > 0) createVisualWords(prop);
+		if (!success) {
+			System.out.println("Some leases could not be indexed, see the messages above. Index them by:");
+			System.out.println("java -jar indexer.jar distindex " + coordinator.getFailedList().getPath());
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Indexes the images listed in imagesFile into the index at indexPath.
+	 * 
+	 * @return true if the indexer finished and every image was either indexed or rejected, false if it failed.
+	 */
+	private static boolean indexImages(Properties prop, String imagesFile, String indexPath, boolean overWrite) {
+		final FeatureProfile profile = FeatureProfile.fromProperties(prop);
+		if (Boolean.parseBoolean(prop.getProperty("stagedPipeline", "false"))) {
+			StagedIndexer indexer = new StagedIndexer(indexPath, new File(imagesFile), overWrite) {
+				public void addGlobalBuilders(ChainedDocumentBuilder builder) {
+					profile.addGlobalBuilders(builder);
+				}
+
+				public void addLocalBuilders(ChainedDocumentBuilder builder) {
+					profile.addLocalBuilders(builder);
+				}
+			};
+			indexer.setThreads(Integer.parseInt(prop.getProperty("readThreads", "4")),
+					Integer.parseInt(prop.getProperty("decodeThreads", "2")),
+					Integer.parseInt(prop.getProperty("globalThreads", "1")),
+					profile.isIndexed(FeatureProfile.SURF) ? Integer.parseInt(prop.getProperty("surfThreads", "2")) : 0,
+					Integer.parseInt(prop.getProperty("writeThreads", "1")));
+			indexer.setQueueSize(Integer.parseInt(prop.getProperty("stageQueueSize", "100")));
+			indexer.run();
+			profile.printCosts();
+			return checkIndexed(indexer.hasEnded(), indexer.getNumberOfImages(), indexer.getIndexedImages(), indexer.getRejectedImages());
+		} else {
+			int numberOfThreads = Integer.parseInt(prop.getProperty("numberOfThreads"));
+			ParallelIndexer indexer = new ParallelIndexer(numberOfThreads, indexPath, new File(imagesFile), overWrite) {
+				public void addBuilders(ChainedDocumentBuilder builder) {
+					profile.addBuilders(builder);
+				}
+			};
+			indexer.setMaxQueueSize(Integer.parseInt(prop.getProperty("queueSize", "500")));
+			if (Boolean.parseBoolean(prop.getProperty("autoTune", "false"))) {
+				indexer.setAutoTune(Integer.parseInt(prop.getProperty("maxNumberOfThreads", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+				indexer.setHeapCeiling(Double.parseDouble(prop.getProperty("heapCeiling", "0.8")));
+			}
+			indexer.run();
+			profile.printCosts();
+			return checkIndexed(indexer.hasEnded(), indexer.getNumberOfImages(), indexer.getIndexedImages(), indexer.getRejectedImages());
+		}
+	}
+	
+	private static boolean checkIndexed(boolean ended, int images, int indexed, int rejected) {
+		if (!ended) return false;
+		if (indexed + rejected != images) {
+			System.err.println("Only " + indexed + " of " + images + " images were indexed and " + rejected + " rejected, the others were lost.");
+			return false;
+		}
+		return true;
+	}
+	
+	private static void createVisualWords(Properties prop) throws IOException {
+		FeatureProfile profile = FeatureProfile.fromProperties(prop);
+		if (profile.isIndexed(FeatureProfile.SURF)) {
+			System.out.println("Creating visual words...");
+			visualWords(prop);
+			System.out.println("Creating visual words finished.");
+		} else if (profile.isDeferred(FeatureProfile.SURF)) {
+			System.out.println("SURF is deferred, the visual words are created by the backfill command.");
+			System.out.println("java -jar indexer.jar backfill [file]");
+		}
 		System.out.println("Now you can import data to solr by typing.");
 		System.out.println("java -jar indexer.jar import");
 	}
 	
 	private static void importIndex() throws IOException, SolrServerException {
 		Properties prop = getProperties();
+		if (!checkSolrHashing(prop)) System.exit(1);
 		String solrCoreData = prop.getProperty("solrCoreData");
-		System.out.println("Copying clusters-surf.dat to " + solrCoreData);
-		FileUtils.copyFile(new File("clusters-surf.dat"), new File(solrCoreData + "/clusters-surf.dat"));
+		if (new File("clusters-surf.dat").exists()) {
+			System.out.println("Copying clusters-surf.dat to " + solrCoreData);
+			FileUtils.copyFile(new File("clusters-surf.dat"), new File(solrCoreData + "/clusters-surf.dat"));
+		}
 		
 		String url = prop.getProperty("solrCoreUrl");
 		System.out.println("Load data to: " + url);
 		SolrServer server = new HttpSolrServer(url);
 		
-		Collection<SolrInputDocument> buffer = new ArrayList<>(30);
-		
 		IndexReader reader = DirectoryReader.open(FSDirectory.open(new File("index")));
-		for (int i = 0; i < reader.maxDoc(); ++i) {
-			Document doc = reader.document(i);
-			SolrInputDocument inputDoc = new SolrInputDocument();
-			// ID
-			inputDoc.addField("id", doc.getField(DocumentBuilder.FIELD_NAME_IDENTIFIER).stringValue());
-			// ColorLayout
-			BytesRef clHiBin = doc.getField(DocumentBuilder.FIELD_NAME_COLORLAYOUT).binaryValue();
-			inputDoc.addField("cl_hi", ByteBuffer.wrap(clHiBin.bytes, clHiBin.offset, clHiBin.length));
-			//inputDoc.addField("cl_hi", Base64.byteArrayToBase64(clHiBin.bytes, clHiBin.offset, clHiBin.length));
-			inputDoc.addField("cl_ha", doc.getField(DocumentBuilder.FIELD_NAME_COLORLAYOUT + GenericDocumentBuilder.HASH_FIELD_SUFFIX).stringValue());
-			// SURF
-			IndexableField[] features = doc.getFields(DocumentBuilder.FIELD_NAME_SURF);
-			for (IndexableField feature : features) {
-				BytesRef featureBin = feature.binaryValue();
-				inputDoc.addField("su_hi", ByteBuffer.wrap(featureBin.bytes, featureBin.offset, featureBin.length));
-				//inputDoc.addField("su_hi", Base64.byteArrayToBase64(feature.binaryValue().bytes, feature.binaryValue().offset, feature.binaryValue().bytes.length));
+		SolrImporter importer = new SolrImporter(reader, server, new File("import.checkpoint"));
+		importer.setBatchSize(Integer.parseInt(prop.getProperty("importBatchSize", "50")), Integer.parseInt(prop.getProperty("importMaxBatchSize", "500")));
+		importer.setMaxThreads(Integer.parseInt(prop.getProperty("importThreads", "2")));
+		importer.setRangeSize(Integer.parseInt(prop.getProperty("importRangeSize", "5000")));
+		importer.setTargetResponseTime(Long.parseLong(prop.getProperty("importTargetTime", "1000")));
+		importer.setRetries(Integer.parseInt(prop.getProperty("importRetries", "8")), Long.parseLong(prop.getProperty("importBackoff", "1000")));
+		importer.setSoftCommitInterval(Long.parseLong(prop.getProperty("softCommitInterval", "60")) * 1000);
+		try {
+			importer.run();
+		} finally {
+			reader.close();
+			server.shutdown();
+		}
+	}
+	
+	private static void watch(String inbox) {
+		Properties prop = getProperties();
+		if (!checkSolrHashing(prop)) System.exit(1);
+		// the features and hashes have to be created the same way as in the index, deferred features are left to the backfill.
+		final FeatureProfile profile = FeatureProfile.fromProperties(prop);
+		String clusterFile = profile.isIndexed(FeatureProfile.SURF) ? "clusters-surf.dat" : null;
+		final IndexWatcher watcher = new IndexWatcher(new File(inbox), "index", prop.getProperty("solrCoreUrl"), clusterFile) {
+			public void addBuilders(ChainedDocumentBuilder builder) {
+				profile.addBuilders(builder);
 			}
-			inputDoc.addField("su_ha", doc.getField(DocumentBuilder.FIELD_NAME_SURF_VISUAL_WORDS).stringValue());
-			
-			buffer.add(inputDoc);
-			
-			if (buffer.size() >= 1) {
-				// Flush buffer
-				server.add(buffer);
-				buffer.clear();
+		};
+		watcher.setNumberOfThreads(Integer.parseInt(prop.getProperty("numberOfThreads")));
+		watcher.setMaxBatchSize(Integer.parseInt(prop.getProperty("watchBatchSize", "100")));
+		watcher.setMaxLatency(Long.parseLong(prop.getProperty("watchLatency", "5")) * 1000);
+		// on Ctrl+C or kill the extracted documents are pushed before the JVM exits.
+		final Thread mainThread = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				watcher.stop();
+				try {
+					mainThread.join();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
 			}
+		});
+		watcher.run();
+	}
+	
+	/**
+	 * The LireSolr core hashes the queries by BitSampling, so LSH hashes in solr would never match.
+	 * 
+	 * @return false if the index is hashed by LSH and must not be pushed to solr.
+	 */
+	private static boolean checkSolrHashing(Properties prop) {
+		if (GenericDocumentBuilder.HashingMode.valueOf(prop.getProperty("hashingMode", "BitSampling")) != GenericDocumentBuilder.HashingMode.LSH) return true;
+		System.out.println("The index is hashed by LSH (hashingMode in config.properties), but the LireSolr core searches BitSampling hashes.");
+		System.out.println("LSH can be used for indexes compared by the evaluate command only, index the images again with hashingMode = BitSampling.");
+		return false;
+	}
+	
+	/**
+	 * Converts a document of the index to the document expected by the LireSolr core.
+	 */
+	static SolrInputDocument createSolrDocument(Document doc) {
+		SolrInputDocument inputDoc = new SolrInputDocument();
+		// ID
+		inputDoc.addField("id", doc.getField(DocumentBuilder.FIELD_NAME_IDENTIFIER).stringValue());
+		// global features, depending on the profile some of them are missing
+		for (Map.Entry<String, String> global : FeatureProfile.getSolrPrefixes().entrySet()) {
+			IndexableField feature = doc.getField(global.getKey());
+			if (feature == null) continue;
+			BytesRef hiBin = feature.binaryValue();
+			inputDoc.addField(global.getValue() + "_hi", ByteBuffer.wrap(hiBin.bytes, hiBin.offset, hiBin.length));
+			IndexableField hash = doc.getField(global.getKey() + GenericDocumentBuilder.HASH_FIELD_SUFFIX);
+			if (hash != null) inputDoc.addField(global.getValue() + "_ha", hash.stringValue());
 		}
-		
-		if (buffer.size() > 0) {
-			server.add(buffer);
-			buffer.clear();
-		}
-		
-		try {
-			server.commit();
-			server.shutdown();
-		} catch (SolrServerException e) {
-			e.printStackTrace();
+		// SURF, missing if it is deferred and not backfilled yet
+		IndexableField[] features = doc.getFields(DocumentBuilder.FIELD_NAME_SURF);
+		for (IndexableField feature : features) {
+			BytesRef featureBin = feature.binaryValue();
+			inputDoc.addField("su_hi", ByteBuffer.wrap(featureBin.bytes, featureBin.offset, featureBin.length));
+			//inputDoc.addField("su_hi", Base64.byteArrayToBase64(feature.binaryValue().bytes, feature.binaryValue().offset, feature.binaryValue().bytes.length));
 		}
+		IndexableField visualWords = doc.getField(DocumentBuilder.FIELD_NAME_SURF_VISUAL_WORDS);
+		if (visualWords != null) inputDoc.addField("su_ha", visualWords.stringValue());
+		return inputDoc;
 	}
 	
-	private static void visualWords() throws IOException {
+	private static void evaluate() throws IOException {
 		Properties prop = getProperties();
+		HashingEvaluation evaluation = new HashingEvaluation("index");
+		evaluation.setNumberOfQueries(Integer.parseInt(prop.getProperty("evalQueries", "100")));
+		evaluation.setK(Integer.parseInt(prop.getProperty("evalK", "10")));
+		evaluation.setNumberOfCandidates(Integer.parseInt(prop.getProperty("evalCandidates", "500")));
+		evaluation.run();
+	}
+	
+	private static void visualWords(Properties prop) throws IOException {
 		IndexReader ir = DirectoryReader.open(FSDirectory.open(new File("index")));
 		LocalFeatureHistogramBuilder.DELETE_LOCAL_FEATURES = false;
 		int numDocsForVocabulary = Integer.parseInt(prop.getProperty("numDocsForVocabulary"));
@@ -180,7 +378,11 @@ public class Main {
 	private static void printHelp() {
 		System.out.println("USAGE:");
 		System.out.println("\t index file - File contains paths to the images, which will be indexed.");
+		System.out.println("\t distindex file - Same as index, but the images are indexed by several worker processes (numberOfWorkers in config.properties).");
+		System.out.println("\t watch inbox - Runs as a service, indexes new images from the inbox directory (moving them to inbox-processed) or list file and pushes them to solr. Needs clusters-surf.dat from the index step.");
+		System.out.println("\t backfill [file] - Extracts the deferred features (deferredFeatures in config.properties) for the indexed images, or only for the images listed in file. The visual words of the existing vocabulary are assigned, a full backfill creates the vocabulary if there is none.");
 		System.out.println("\t import - It sends data from index to solr server specific in the config.properties file.");
+		System.out.println("\t evaluate - It compares the hash based search to the exhaustive search on the index and prints recall and latencies.");
 		System.out.println("\t visualwords - It creates data for visual words technique. This step is automatically execute after index step. You can execute this step again if you want to create visual words with other parameters specific in config.properties file.");
 	}
 }
@@ -1,11 +1,7 @@
 package net.semanticmetadata.lire.solr;
 
-import net.semanticmetadata.lire.DocumentBuilder;
 import net.semanticmetadata.lire.DocumentBuilderFactory;
-import net.semanticmetadata.lire.imageanalysis.*;
-import net.semanticmetadata.lire.imageanalysis.joint.JointHistogram;
 import net.semanticmetadata.lire.impl.ChainedDocumentBuilder;
-import net.semanticmetadata.lire.impl.GenericDocumentBuilder;
 import net.semanticmetadata.lire.indexing.LireCustomCodec;
 import net.semanticmetadata.lire.indexing.parallel.WorkItem;
 import net.semanticmetadata.lire.utils.FileUtils;
@@ -17,14 +13,17 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.FSDirectory;
 
-import javax.imageio.ImageIO;
-
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class allows for creating indexes in a parallel manner. The class
@@ -38,22 +37,44 @@ public class ParallelIndexer implements Runnable {
     private int numberOfThreads = 10;
     private String indexPath;
     private String imageDirectory;
-    Stack<WorkItem> images = new Stack<WorkItem>();
+    Stack<PooledWorkItem> images = new Stack<PooledWorkItem>();
     IndexWriter writer;
     File imageList = null;
     boolean ended = false;
     boolean threadFinished = false;
     private List<String> files;
     int overallCount = 0, numImages = -1;
+    // images written to the index and images, which could not be read or analyzed.
+    final AtomicInteger indexedCount = new AtomicInteger(), rejectedCount = new AtomicInteger();
     private IndexWriterConfig.OpenMode openMode = IndexWriterConfig.OpenMode.CREATE_OR_APPEND;
     // all xx seconds a status message will be displayed
     private int monitoringInterval = 30;
+    // maximum number of images the producer keeps in memory, adapted at runtime in auto tune mode.
+    private volatile int maxQueueSize = 500;
+    // auto tune mode: consumer pool and queue size are adapted to the observed throughput.
+    private boolean autoTune = false;
+    private int maxNumberOfThreads = 10;
+    private double heapCeiling = 0.8;
+    // all xx seconds the auto tuner re-evaluates the settings
+    private int tuningInterval = 10;
+    int activeConsumers = 0;
+    // how often consumers found the queue empty, guarded by images.
+    int consumerWaits = 0;
+    // the settings with the best throughput measured by the tuner.
+    private double bestThroughput = -1;
+    private int bestNumberOfThreads, bestQueueSize;
+    private final LinkedList<Thread> threads = new LinkedList<Thread>();
+    // file contents and decoded images are reused to keep the garbage collector calm.
+    private BufferPool bufferPool = new BufferPool(64L << 20);
+    private RasterPool rasterPool;
 
     public static void main(String[] args) {
         String indexPath = null;
         String imageDirectory = null;
         File imageList = null;
         int numThreads = 10;
+        int maxThreads = -1;
+        String features = "phog, jcd, opponenthistogram, jointhistogram, colorlayout, edgehistogram, simplecolorhistogram";
         for (int i = 0; i < args.length; i++) {
             String arg = args[i];
             if (arg.startsWith("-i")) {  // index
@@ -68,6 +89,18 @@ public class ParallelIndexer implements Runnable {
                         System.err.println("Could not read number of threads: " + args[i + 1] + "\nUsing default value " + numThreads);
                     }
                 }
+            } else if (arg.startsWith("-a")) { // auto tune up to the given number of threads
+                if ((i + 1) < args.length) {
+                    try {
+                        maxThreads = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Could not read maximum number of threads: " + args[i + 1] + "\nAuto tuning is disabled.");
+                    }
+                }
+            } else if (arg.startsWith("-f")) { // comma separated list of features
+                if ((i + 1) < args.length) {
+                    features = args[i + 1];
+                }
             } else if (arg.startsWith("-l")) { // list of images in a file ...
                 imageDirectory = null;
                 if ((i + 1) < args.length) {
@@ -92,18 +125,13 @@ public class ParallelIndexer implements Runnable {
             printHelp();
             System.exit(-1);
         }
+        final FeatureProfile profile = new FeatureProfile("command line", features, "", GenericDocumentBuilder.HashingMode.BitSampling);
         ParallelIndexer p;
         if (imageList != null) {
             p = new ParallelIndexer(numThreads, indexPath, imageList) {
                 @Override
                 public void addBuilders(ChainedDocumentBuilder builder) {
-                    builder.addBuilder(new GenericDocumentBuilder(PHOG.class, DocumentBuilder.FIELD_NAME_PHOG, true));
-                    builder.addBuilder(new GenericDocumentBuilder(JCD.class, DocumentBuilder.FIELD_NAME_JCD, true));
-                    builder.addBuilder(new GenericDocumentBuilder(OpponentHistogram.class, DocumentBuilder.FIELD_NAME_OPPONENT_HISTOGRAM, true));
-                    builder.addBuilder(new GenericDocumentBuilder(JointHistogram.class, DocumentBuilder.FIELD_NAME_JOINT_HISTOGRAM, true));
-                    builder.addBuilder(new GenericDocumentBuilder(ColorLayout.class, DocumentBuilder.FIELD_NAME_COLORLAYOUT, true));
-                    builder.addBuilder(new GenericDocumentBuilder(EdgeHistogram.class, DocumentBuilder.FIELD_NAME_EDGEHISTOGRAM, true));
-                    builder.addBuilder(new GenericDocumentBuilder(SimpleColorHistogram.class, DocumentBuilder.FIELD_NAME_COLORHISTOGRAM, true));
+                    profile.addBuilders(builder);
                 }
             };
 
@@ -111,17 +139,13 @@ public class ParallelIndexer implements Runnable {
             p = new ParallelIndexer(numThreads, indexPath, imageDirectory) {
                 @Override
                 public void addBuilders(ChainedDocumentBuilder builder) {
-                    builder.addBuilder(new GenericDocumentBuilder(PHOG.class, DocumentBuilder.FIELD_NAME_PHOG, true));
-                    builder.addBuilder(new GenericDocumentBuilder(JCD.class, DocumentBuilder.FIELD_NAME_JCD, true));
-                    builder.addBuilder(new GenericDocumentBuilder(OpponentHistogram.class, DocumentBuilder.FIELD_NAME_OPPONENT_HISTOGRAM, true));
-                    builder.addBuilder(new GenericDocumentBuilder(JointHistogram.class, DocumentBuilder.FIELD_NAME_JOINT_HISTOGRAM, true));
-                    builder.addBuilder(new GenericDocumentBuilder(ColorLayout.class, DocumentBuilder.FIELD_NAME_COLORLAYOUT, true));
-                    builder.addBuilder(new GenericDocumentBuilder(EdgeHistogram.class, DocumentBuilder.FIELD_NAME_EDGEHISTOGRAM, true));
-                    builder.addBuilder(new GenericDocumentBuilder(SimpleColorHistogram.class, DocumentBuilder.FIELD_NAME_COLORHISTOGRAM, true));
+                    profile.addBuilders(builder);
                 }
             };
         }
+        if (maxThreads > 0) p.setAutoTune(maxThreads);
         p.run();
+        profile.printCosts();
     }
 
     /**
@@ -130,12 +154,15 @@ public class ParallelIndexer implements Runnable {
     private static void printHelp() {
         System.out.println("Usage:\n" +
                 "\n" +
-                "$> ParallelIndexer -i <index> <-d <image-directory> | -l <image-list>> [-n <number of threads>]\n" +
+                "$> ParallelIndexer -i <index> <-d <image-directory> | -l <image-list>> [-n <number of threads>] [-a <max number of threads>] [-f <features>]\n" +
                 "\n" +
                 "index             ... The directory of the index. Will be appended or created if not existing.\n" +
                 "images-directory  ... The directory the images are found in. It's traversed recursively.\n" +
                 "image-list        ... A list of images in a file, one per line. Use instead of images-directory.\n" +
-                "number of threads ... The number of threads used for extracting features, e.g. # of CPU cores.");
+                "number of threads ... The number of threads used for extracting features, e.g. # of CPU cores.\n" +
+                "max number of threads ... Enables auto tuning, the number of threads is adapted at runtime up to this limit.\n" +
+                "features          ... Comma separated list of features, e.g. colorlayout,cedd,surf. Defaults to\n" +
+                "                      phog,jcd,opponenthistogram,jointhistogram,colorlayout,edgehistogram,simplecolorhistogram.");
     }
 
     /**
@@ -201,6 +228,40 @@ public class ParallelIndexer implements Runnable {
 //        builder.addBuilder(DocumentBuilderFactory.getColorHistogramDocumentBuilder());
     }
 
+    /**
+     * Enables the auto tune mode. The number of consumer threads and the size of the image queue
+     * are adapted at runtime to maximize the number of images indexed per second. The number of threads
+     * given in the constructor is used as the starting point.
+     *
+     * @param maxNumberOfThreads upper limit for the number of consumer threads.
+     */
+    public void setAutoTune(int maxNumberOfThreads) {
+        this.autoTune = true;
+        this.maxNumberOfThreads = Math.max(1, maxNumberOfThreads);
+    }
+
+    /**
+     * @param heapCeiling fraction of the maximum heap, which should not be exceeded in auto tune mode.
+     */
+    public void setHeapCeiling(double heapCeiling) {
+        this.heapCeiling = heapCeiling;
+    }
+
+    /**
+     * @param maxQueueSize maximum number of read images waiting for the consumers.
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = Math.max(1, maxQueueSize);
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
     public void run() {
         IndexWriterConfig config = new IndexWriterConfig(LuceneUtils.LUCENE_VERSION, new StandardAnalyzer(LuceneUtils.LUCENE_VERSION));
         config.setOpenMode(openMode);
@@ -220,22 +281,32 @@ public class ParallelIndexer implements Runnable {
             }
             numImages = files.size();
             System.out.println("Indexing " + files.size() + " images.");
+            // an eighth of the heap, but at most 256 MB, for decoded images waiting for reuse.
+            rasterPool = new RasterPool(Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 8));
             Thread p = new Thread(new Producer());
             p.start();
-            LinkedList<Thread> threads = new LinkedList<Thread>();
             long l = System.currentTimeMillis();
             for (int i = 0; i < numberOfThreads; i++) {
-                Thread c = new Thread(new Consumer());
-                c.start();
-                threads.add(c);
+                startConsumer();
             }
             Thread m = new Thread(new Monitoring());
             m.start();
-            for (Iterator<Thread> iterator = threads.iterator(); iterator.hasNext(); ) {
-                iterator.next().join();
+            if (autoTune) {
+                Thread t = new Thread(new Tuner());
+                t.setDaemon(true);
+                t.start();
+            }
+            // consumers may be added by the tuner while we are waiting.
+            Thread c;
+            while ((c = nextConsumer()) != null) {
+                c.join();
             }
             long l1 = System.currentTimeMillis() - l;
             System.out.println("Analyzed " + overallCount + " images in " + l1 / 1000 + " seconds, ~" + ((overallCount>0)?(l1 / overallCount):"n.a.") + " ms each.");
+            if (autoTune && bestThroughput >= 0) {
+                System.out.println(String.format("Auto tuning finished, best throughput %.1f images/s, to pin the settings use: numberOfThreads = %d, queueSize = %d",
+                        bestThroughput, bestNumberOfThreads, bestQueueSize));
+            }
             writer.commit();
             writer.close();
             threadFinished = true;
@@ -246,6 +317,23 @@ public class ParallelIndexer implements Runnable {
         }
     }
 
+    private void startConsumer() {
+        Thread c = new Thread(new Consumer());
+        synchronized (images) {
+            activeConsumers++;
+        }
+        synchronized (threads) {
+            threads.add(c);
+        }
+        c.start();
+    }
+
+    private Thread nextConsumer() {
+        synchronized (threads) {
+            return threads.isEmpty() ? null : threads.removeFirst();
+        }
+    }
+
     /**
      * Check is this thread is still running.
      *
@@ -255,6 +343,25 @@ public class ParallelIndexer implements Runnable {
         return threadFinished;
     }
 
+    public int getNumberOfImages() {
+        return numImages;
+    }
+
+    /**
+     * @return number of images written to the index.
+     */
+    public int getIndexedImages() {
+        return indexedCount.get();
+    }
+
+    /**
+     * @return number of images, which could not be read or analyzed. Together with the indexed images
+     *         they make up all images, unless a consumer thread died.
+     */
+    public int getRejectedImages() {
+        return rejectedCount.get();
+    }
+
     /**
      * Returns how many of the images have been processed already.
      *
@@ -285,45 +392,110 @@ public class ParallelIndexer implements Runnable {
         }
     }
 
+    /**
+     * The tuner periodically measures the throughput and adapts the number of consumers by hill climbing:
+     * as long as the throughput rises it keeps the direction, otherwise it turns around. The queue grows
+     * when it ran empty while consumers were waiting, and shrinks when the heap left after the last garbage
+     * collection exceeds the ceiling. The settings of the best measured interval are kept for the final message.
+     */
+    class Tuner implements Runnable {
+        public void run() {
+            long lastTime = System.currentTimeMillis();
+            int lastCount = overallCount;
+            double lastThroughput = 0;
+            int direction = 1;
+            int lastWaits = 0;
+            while (!ended) {
+                try {
+                    Thread.sleep(1000 * tuningInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long time = System.currentTimeMillis();
+                int count = overallCount;
+                double throughput = (count - lastCount) * 1000d / Math.max(1, time - lastTime);
+                lastTime = time;
+                lastCount = count;
+                int queued, waits;
+                synchronized (images) {
+                    queued = images.size();
+                    waits = consumerWaits - lastWaits;
+                    lastWaits = consumerWaits;
+                }
+                double heapUsage = postGcHeapUsage();
+                if (throughput > bestThroughput) {
+                    bestThroughput = throughput;
+                    bestNumberOfThreads = numberOfThreads;
+                    bestQueueSize = maxQueueSize;
+                }
+
+                if (throughput < lastThroughput * 0.95) direction = -direction;
+                lastThroughput = throughput;
+                int target = numberOfThreads + direction;
+                // an empty queue means the producer is the bottleneck, more consumers would only wait.
+                if (queued == 0 && direction > 0) target = numberOfThreads;
+                if (heapUsage > heapCeiling) {
+                    target = Math.min(target, numberOfThreads);
+                    maxQueueSize = Math.max(10, maxQueueSize / 2);
+                } else if (queued == 0 && waits > 0 && heapUsage < heapCeiling / 2) {
+                    // a full queue means slow consumers, a bigger one helps only if they ran dry.
+                    maxQueueSize = maxQueueSize * 2;
+                }
+                target = Math.max(1, Math.min(maxNumberOfThreads, target));
+                if (ended) break;
+                synchronized (images) {
+                    numberOfThreads = target;
+                }
+                int toStart;
+                synchronized (images) {
+                    toStart = numberOfThreads - activeConsumers;
+                }
+                for (int i = 0; i < toStart; i++) {
+                    startConsumer();
+                }
+                System.out.println(String.format("[ParallelIndexer] Auto tune: %.1f images/s, %d images in queue, heap %d%% -> numberOfThreads = %d, queueSize = %d",
+                        throughput, queued, (int) (heapUsage * 100), numberOfThreads, maxQueueSize));
+            }
+        }
+    }
+
+    /**
+     * @return fraction of the maximum heap in use after the last garbage collection, so garbage
+     *         waiting to be collected doesn't count.
+     */
+    static double postGcHeapUsage() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null) used += usage.getUsed();
+        }
+        return (double) used / Runtime.getRuntime().maxMemory();
+    }
+
     class Producer implements Runnable {
         public void run() {
             boolean leaveOneOut = false;
 //            BufferedImage tmpImage;
-            int tmpSize = 0;
             for (Iterator<String> iterator = files.iterator(); iterator.hasNext(); ) {
                 String path = iterator.next();
                 File next = new File(path);
                 try {
 //                    tmpImage = ImageIO.read(next);
                     int fileSize = (int) next.length();
-                    byte[] buffer = new byte[fileSize];
-                    FileInputStream fis = new FileInputStream(next);
-                    fis.read(buffer);
+                    byte[] buffer = bufferPool.read(next);
                     synchronized (images) {
                         path = next.getPath();
                         // TODO: add re-write rule for path here!
 //                        path = path.replace("E:\\WIPO-conv\\convert", "");
 //                        path = path.replace("D:\\Temp\\WIPO-US\\jpg_", "");
-                        // this helps a lot for slow computers ....
-                        if (images.size()>500) images.wait(5000);
-                        images.add(new WorkItem(path, buffer));
-                        tmpSize = images.size();
+                        // the queue is bounded by maxQueueSize only, so a bigger budget of the tuner never slows the reading down.
+                        // iy you encounter still memory errors, then try a smaller queueSize or more threads.
+                        while (images.size() >= maxQueueSize) images.wait(50);
+                        images.add(new PooledWorkItem(path, buffer, fileSize));
                         images.notifyAll();
                     }
-                    try {
-                        // it's actually hard to manage the amount of memory used to cache images.
-                        // On faster computers it turns out to be good to have a big cache, on
-                        // slower ones the cache poses a serious problem and leads to memory and GC exceptions.
-                        // iy you encounter still memory errors, then try to use more threads.
-                        if (tmpSize > 500) Thread.sleep(50);
-                        else if (tmpSize > 1000) Thread.sleep(5000);
-                        else if (tmpSize > 2000) Thread.sleep(50000);
-                        else if (tmpSize > 3000) Thread.sleep(500000);
-                        else Thread.sleep(5);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
                 } catch (Exception e) {
+                    rejectedCount.incrementAndGet();
                     System.err.println("Could not open " + path + ". " + e.getMessage());
 //                    e.printStackTrace();
                 }
@@ -339,8 +511,9 @@ public class ParallelIndexer implements Runnable {
      * Consumers take the images prepared from the Producer and extract all the image features.
      */
     class Consumer implements Runnable {
-        WorkItem tmp = null;
+        PooledWorkItem tmp = null;
         ChainedDocumentBuilder builder = new ChainedDocumentBuilder();
+        ImageDecoder decoder = new ImageDecoder(rasterPool);
         int count = 0;
         boolean locallyEnded = false;
 
@@ -349,9 +522,23 @@ public class ParallelIndexer implements Runnable {
         }
 
         public void run() {
+            try {
+                consume();
+            } finally {
+                decoder.dispose();
+            }
+        }
+
+        private void consume() {
             while (!locallyEnded) {
                 synchronized (images) {
+                    // the tuner reduced the number of consumers, so this one retires.
+                    if (activeConsumers > numberOfThreads) {
+                        activeConsumers--;
+                        return;
+                    }
                     // we wait for the stack to be either filled or empty & not being filled any more.
+                    if (images.empty() && !ended) consumerWaits++;
                     while (images.empty() && !ended) {
                         try {
                             images.wait(10);
@@ -369,19 +556,43 @@ public class ParallelIndexer implements Runnable {
                         overallCount++;
                     }
                 }
+                BufferedImage img = null;
                 try {
                     if (!locallyEnded) {
-                        ByteArrayInputStream b = new ByteArrayInputStream(tmp.getBuffer());
-                        BufferedImage img = ImageIO.read(b);
+                        img = decoder.decode(tmp.getBuffer(), tmp.length);
+                        bufferPool.release(tmp.getBuffer());
+                        tmp.setBuffer(null);
+                        if (img == null) throw new IOException("Unsupported image format.");
                         Document d = builder.createDocument(img, tmp.getFileName());
                         writer.addDocument(d);
+                        indexedCount.incrementAndGet();
                     }
                 } catch (Exception e) {
+                    rejectedCount.incrementAndGet();
                     System.err.println("[ParallelIndexer] Could not handle file " + tmp.getFileName() + ": "  + e.getMessage());
                     e.printStackTrace();
+                } finally {
+                    if (tmp != null && tmp.getBuffer() != null) {
+                        bufferPool.release(tmp.getBuffer());
+                        tmp.setBuffer(null);
+                    }
+                    // the builders don't keep the image, so it can be the destination of the next decoding.
+                    rasterPool.release(img);
                 }
             }
 //            System.out.println("Images analyzed: " + count);
         }
     }
+
+    /**
+     * A work item with a pooled buffer, which may be longer than the file.
+     */
+    static class PooledWorkItem extends WorkItem {
+        final int length;
+
+        PooledWorkItem(String fileName, byte[] buffer, int length) {
+            super(fileName, buffer);
+            this.length = length;
+        }
+    }
 }
@@ -0,0 +1,87 @@
+package net.semanticmetadata.lire.solr;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A pool of decoded images, which are reused as decoding destination for images of the same size and type.
+ * Collections of scans or photos from the same device often share their dimensions, so most images
+ * can be decoded without allocating a new raster. Images with their own color model (custom and
+ * palette types) are never pooled, a reader would write palette indices for the wrong palette.
+ * Released images are kept up to the given number of bytes, the least recently used sizes are dropped
+ * first. Instances are thread safe.
+ */
+public class RasterPool {
+    private final long maxPooledBytes;
+    private final Map<String, LinkedList<BufferedImage>> images = new HashMap<String, LinkedList<BufferedImage>>();
+    // keys in the order of their last release, the least recently used images are dropped first.
+    private final LinkedList<String> order = new LinkedList<String>();
+    private long pooledBytes = 0;
+
+    /**
+     * @param maxPooledBytes maximum number of bytes kept in the pool.
+     */
+    public RasterPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * @param type one of the BufferedImage.TYPE_* constants.
+     * @return an image with the given size and type or null if there is none in the pool.
+     */
+    public synchronized BufferedImage acquire(int width, int height, int type) {
+        LinkedList<BufferedImage> list = images.get(key(width, height, type));
+        if (list == null || list.isEmpty()) return null;
+        BufferedImage image = list.removeFirst();
+        pooledBytes -= bytes(image);
+        return image;
+    }
+
+    /**
+     * Returns an image to the pool, it must not be used afterwards.
+     */
+    public synchronized void release(BufferedImage image) {
+        if (image == null || !isPoolable(image.getType())) return;
+        long bytes = bytes(image);
+        if (bytes > maxPooledBytes) return;
+        String key = key(image.getWidth(), image.getHeight(), image.getType());
+        LinkedList<BufferedImage> list = images.get(key);
+        if (list == null) {
+            list = new LinkedList<BufferedImage>();
+            images.put(key, list);
+        }
+        list.addFirst(image);
+        pooledBytes += bytes;
+        order.remove(key);
+        order.addLast(key);
+        while (pooledBytes > maxPooledBytes) {
+            LinkedList<BufferedImage> oldest = images.get(order.getFirst());
+            if (!oldest.isEmpty()) {
+                pooledBytes -= bytes(oldest.removeLast());
+            }
+            if (oldest.isEmpty()) images.remove(order.removeFirst());
+        }
+    }
+
+    /**
+     * @return true if images of the BufferedImage.TYPE_* type can be reused for other images of the same size.
+     */
+    static boolean isPoolable(int type) {
+        return type != BufferedImage.TYPE_CUSTOM && type != BufferedImage.TYPE_BYTE_INDEXED && type != BufferedImage.TYPE_BYTE_BINARY;
+    }
+
+    /**
+     * @return the size of the pixel data of the image.
+     */
+    static long bytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    private static String key(int width, int height, int type) {
+        return width + "x" + height + ":" + type;
+    }
+}
@@ -0,0 +1,385 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.util.Bits;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the documents of the index to Solr. The segments of the index are split into ranges of documents,
+ * which are imported concurrently, so a merged index with one big segment still uses all the threads.
+ * The import can be interrupted and started again: for every range the next document to send is written
+ * to a checkpoint file, and a restarted import skips the documents before it. Failed batches are retried
+ * with exponential backoff. Batches rejected by Solr (4xx) are split to find the bad documents, which are skipped.
+ * <p/>
+ * The batch size and the number of concurrent requests adapt to the response times of Solr: they grow
+ * while Solr answers faster than the target time and are halved when it gets slower or fails.
+ * Documents are made visible by soft commits at a fixed interval and a hard commit at the end.
+ */
+public class SolrImporter {
+    private IndexReader reader;
+    private SolrServer server;
+    private File checkpointFile;
+    private int minBatchSize = 1;
+    private int maxBatchSize = 500;
+    private int maxThreads = 2;
+    // documents per range, it must not change between an interrupted import and its restart.
+    private int rangeSize = 5000;
+    // in ms
+    private long targetResponseTime = 1000;
+    private int maxRetries = 8;
+    // in ms, doubled with every retry
+    private long initialBackoff = 1000;
+    private long maxBackoff = 60000;
+    // in ms, 0 disables the soft commits
+    private long softCommitInterval = 60000;
+
+    private volatile int batchSize = 50;
+    private final AdaptiveLimit concurrency = new AdaptiveLimit(1);
+    private final Properties checkpoint = new Properties();
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private volatile boolean ended = false;
+
+    /**
+     * @param reader         the index to import.
+     * @param server         the Solr core.
+     * @param checkpointFile the file, where the progress is stored. It is deleted when the import finished.
+     */
+    public SolrImporter(IndexReader reader, SolrServer server, File checkpointFile) {
+        this.reader = reader;
+        this.server = server;
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * @param initialBatchSize number of documents in the first requests.
+     * @param maxBatchSize     upper limit for the adapted batch size.
+     */
+    public void setBatchSize(int initialBatchSize, int maxBatchSize) {
+        this.maxBatchSize = Math.max(minBatchSize, maxBatchSize);
+        this.batchSize = Math.max(minBatchSize, Math.min(this.maxBatchSize, initialBatchSize));
+    }
+
+    /**
+     * @param maxThreads upper limit for the number of concurrent requests.
+     */
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = Math.max(1, maxThreads);
+    }
+
+    /**
+     * @param rangeSize number of documents of a segment, which are imported by one thread. A restarted
+     *                  import must use the same range size to continue.
+     */
+    public void setRangeSize(int rangeSize) {
+        this.rangeSize = Math.max(1, rangeSize);
+    }
+
+    /**
+     * @param targetResponseTime response time in ms, up to which the batch size and concurrency grow.
+     */
+    public void setTargetResponseTime(long targetResponseTime) {
+        this.targetResponseTime = targetResponseTime;
+    }
+
+    /**
+     * @param maxRetries     how many times a failed batch is sent again before the import is aborted.
+     * @param initialBackoff time in ms before the first retry, it is doubled with every further retry.
+     */
+    public void setRetries(int maxRetries, long initialBackoff) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.initialBackoff = Math.max(1, initialBackoff);
+    }
+
+    /**
+     * @param softCommitInterval time in ms between two soft commits, 0 disables them.
+     */
+    public void setSoftCommitInterval(long softCommitInterval) {
+        this.softCommitInterval = softCommitInterval;
+    }
+
+    public void run() throws IOException, SolrServerException {
+        readCheckpoint();
+        ConcurrentLinkedQueue<Range> ranges = new ConcurrentLinkedQueue<Range>();
+        for (AtomicReaderContext context : reader.leaves()) {
+            AtomicReader segment = context.reader();
+            for (int start = 0; start < segment.maxDoc(); start += rangeSize) {
+                ranges.add(new Range(segment, start, Math.min(segment.maxDoc(), start + rangeSize)));
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
+        Thread softCommits = null;
+        if (softCommitInterval > 0) {
+            softCommits = new Thread(new SoftCommits());
+            softCommits.setDaemon(true);
+            softCommits.start();
+        }
+        long l = System.currentTimeMillis();
+        try {
+            // each worker imports whole ranges, so the checkpoint of a range only moves forward.
+            List<Future<Void>> workers = new ArrayList<Future<Void>>();
+            for (int i = 0; i < Math.min(maxThreads, ranges.size()); i++) {
+                workers.add(executor.submit(new Worker(ranges)));
+            }
+            for (Future<Void> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SolrServerException) throw (SolrServerException) e.getCause();
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            ended = true;
+            executor.shutdownNow();
+            if (softCommits != null) softCommits.interrupt();
+        }
+        commit();
+        checkpointFile.delete();
+        long l1 = System.currentTimeMillis() - l;
+        System.out.println("Imported " + sent.get() + " documents in " + l1 / 1000 + " seconds, " + rejected.get() + " rejected by Solr.");
+    }
+
+    /**
+     * The documents start (inclusive) to end (exclusive) of a segment.
+     */
+    static class Range {
+        final AtomicReader segment;
+        final String name;
+        final int start;
+        final int end;
+
+        Range(AtomicReader segment, int start, int end) {
+            this.segment = segment;
+            String segmentName = (segment instanceof SegmentReader) ? ((SegmentReader) segment).getSegmentName() : segment.toString();
+            this.name = segmentName + "@" + start;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    class Worker implements Callable<Void> {
+        private final ConcurrentLinkedQueue<Range> ranges;
+
+        Worker(ConcurrentLinkedQueue<Range> ranges) {
+            this.ranges = ranges;
+        }
+
+        public Void call() throws IOException, SolrServerException, InterruptedException {
+            Range range;
+            while ((range = ranges.poll()) != null) {
+                importRange(range);
+            }
+            return null;
+        }
+    }
+
+    private void importRange(Range range) throws IOException, SolrServerException, InterruptedException {
+        AtomicReader segment = range.segment;
+        Bits liveDocs = segment.getLiveDocs();
+        int doc = Math.max(range.start, getCheckpoint(range.name, segment.maxDoc()));
+        if (doc > range.start && doc < range.end) System.out.println("Range " + range.name + ": resuming at document " + doc + " of " + range.end + ".");
+        List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>();
+        while (doc < range.end) {
+            int size = batchSize;
+            batch.clear();
+            int next = doc;
+            for (; next < range.end && batch.size() < size; next++) {
+                if (liveDocs != null && !liveDocs.get(next)) continue;
+                batch.add(Main.createSolrDocument(segment.document(next)));
+            }
+            if (!batch.isEmpty()) send(batch);
+            doc = next;
+            setCheckpoint(range.name, segment.maxDoc(), doc);
+        }
+    }
+
+    /**
+     * Sends a batch, retries it on failures and adapts batch size and concurrency to the response time.
+     * A rejected batch is split until the rejected documents are found, they are skipped.
+     */
+    private void send(List<SolrInputDocument> batch) throws IOException, SolrServerException, InterruptedException {
+        long backoff = initialBackoff;
+        for (int attempt = 0; ; attempt++) {
+            SolrException rejection = null;
+            concurrency.acquire();
+            long t = System.currentTimeMillis();
+            try {
+                server.add(batch);
+                long time = System.currentTimeMillis() - t;
+                sent.addAndGet(batch.size());
+                if (time <= targetResponseTime) {
+                    // additive increase while Solr keeps up
+                    batchSize = Math.min(maxBatchSize, batchSize + Math.max(1, batchSize / 10));
+                    if (concurrency.getLimit() < maxThreads) concurrency.setLimit(concurrency.getLimit() + 1);
+                } else {
+                    // multiplicative decrease when Solr gets slow
+                    slowDown();
+                }
+                return;
+            } catch (Exception e) {
+                // a client error is caused by the documents, sending them again would fail again.
+                if (e instanceof SolrException && ((SolrException) e).code() >= 400 && ((SolrException) e).code() < 500) {
+                    rejection = (SolrException) e;
+                } else {
+                    slowDown();
+                    if (attempt >= maxRetries) {
+                        if (e instanceof SolrServerException) throw (SolrServerException) e;
+                        if (e instanceof IOException) throw (IOException) e;
+                        throw new IOException(e);
+                    }
+                    System.err.println("[SolrImporter] Could not send " + batch.size() + " documents (" + e.getMessage() + "), retrying in " + backoff / 1000d + " seconds.");
+                }
+            } finally {
+                concurrency.release();
+            }
+            if (rejection != null) {
+                reject(batch, rejection);
+                return;
+            }
+            Thread.sleep(backoff);
+            backoff = Math.min(maxBackoff, backoff * 2);
+        }
+    }
+
+    /**
+     * The hard commit at the end, retried like the batches.
+     */
+    private void commit() throws IOException, SolrServerException {
+        long backoff = initialBackoff;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                server.commit();
+                return;
+            } catch (SolrServerException e) {
+                if (attempt >= maxRetries) throw e;
+                System.err.println("[SolrImporter] Could not commit (" + e.getMessage() + "), retrying in " + backoff / 1000d + " seconds.");
+            } catch (RuntimeException e) {
+                if (attempt >= maxRetries) throw e;
+                System.err.println("[SolrImporter] Could not commit (" + e.getMessage() + "), retrying in " + backoff / 1000d + " seconds.");
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            backoff = Math.min(maxBackoff, backoff * 2);
+        }
+    }
+
+    private void reject(List<SolrInputDocument> batch, SolrException e) throws IOException, SolrServerException, InterruptedException {
+        if (batch.size() > 1) {
+            int half = batch.size() / 2;
+            send(new ArrayList<SolrInputDocument>(batch.subList(0, half)));
+            send(new ArrayList<SolrInputDocument>(batch.subList(half, batch.size())));
+        } else {
+            rejected.incrementAndGet();
+            System.err.println("[SolrImporter] Solr rejected document " + batch.get(0).getFieldValue("id") + " (" + e.getMessage() + "), skipping it.");
+        }
+    }
+
+    private void slowDown() {
+        batchSize = Math.max(minBatchSize, batchSize / 2);
+        concurrency.setLimit(Math.max(1, concurrency.getLimit() / 2));
+    }
+
+    private synchronized int getCheckpoint(String range, int maxDoc) {
+        String value = checkpoint.getProperty(range);
+        if (value == null) return 0;
+        // the segment name is reused if the index was created again, the size tells us.
+        String[] parts = value.split("/");
+        if (parts.length != 2 || Integer.parseInt(parts[1]) != maxDoc) return 0;
+        return Integer.parseInt(parts[0]);
+    }
+
+    private synchronized void setCheckpoint(String range, int maxDoc, int doc) throws IOException {
+        checkpoint.setProperty(range, doc + "/" + maxDoc);
+        // write and rename in one step, so a crash leaves either the old or the new checkpoint behind.
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            checkpoint.store(out, "Documents sent to Solr per segment@first document of range: next document/documents in segment");
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void readCheckpoint() throws IOException {
+        if (!checkpointFile.exists()) return;
+        InputStream in = new FileInputStream(checkpointFile);
+        try {
+            checkpoint.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    class SoftCommits implements Runnable {
+        public void run() {
+            while (!ended) {
+                try {
+                    Thread.sleep(softCommitInterval);
+                    server.commit(false, false, true);
+                    System.out.println("Sent " + sent.get() + " documents, batch size " + batchSize + ", " + concurrency.getLimit() + " concurrent requests.");
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    System.err.println("[SolrImporter] Soft commit failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * A semaphore with a limit, which can be changed while threads hold permits.
+     */
+    static class AdaptiveLimit {
+        private int limit;
+        private int used = 0;
+
+        AdaptiveLimit(int limit) {
+            this.limit = limit;
+        }
+
+        synchronized void acquire() throws InterruptedException {
+            while (used >= limit) wait();
+            used++;
+        }
+
+        synchronized void release() {
+            used--;
+            notifyAll();
+        }
+
+        synchronized int getLimit() {
+            return limit;
+        }
+
+        synchronized void setLimit(int limit) {
+            this.limit = Math.max(1, limit);
+            notifyAll();
+        }
+    }
+}
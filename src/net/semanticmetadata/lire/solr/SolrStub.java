@@ -0,0 +1,137 @@
+package net.semanticmetadata.lire.solr;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for a Solr core, which accepts every request without storing anything. It simulates slow
+ * responses, temporary failures (503) and rejected documents (400), so the retries, the backoff and the
+ * adaptive batch size of the {@link SolrImporter} and the {@link IndexWatcher} can be tried without Solr.
+ * Every request is printed with its status, size and response time.
+ */
+public class SolrStub implements HttpHandler {
+    private long delay = 0;
+    private double failureRate = 0;
+    private String reject = null;
+    private final Random random = new Random();
+    private final AtomicInteger running = new AtomicInteger();
+    private final byte[] ok, rejected;
+
+    public static void main(String[] args) throws IOException {
+        int port = 8983;
+        SolrStub stub = new SolrStub();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-p")) { // port
+                if ((i + 1) < args.length) port = Integer.parseInt(args[i + 1]);
+            } else if (arg.startsWith("-d")) { // delay
+                if ((i + 1) < args.length) stub.delay = Long.parseLong(args[i + 1]);
+            } else if (arg.startsWith("-f")) { // failure rate
+                if ((i + 1) < args.length) stub.failureRate = Double.parseDouble(args[i + 1]);
+            } else if (arg.startsWith("-r")) { // rejected documents
+                if ((i + 1) < args.length) stub.reject = args[i + 1];
+            } else if (arg.startsWith("-h")) {
+                printHelp();
+                return;
+            }
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/", stub);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        System.out.println("Solr stub listening on http://127.0.0.1:" + port + "/solr, delay " + stub.delay + " ms, failure rate " + stub.failureRate
+                + (stub.reject != null ? ", rejecting requests containing " + stub.reject : "") + ".");
+    }
+
+    private static void printHelp() {
+        System.out.println("Usage:\n" +
+                "\n" +
+                "$> SolrStub [-p <port>] [-d <delay>] [-f <failure rate>] [-r <text>]\n" +
+                "\n" +
+                "port         ... The port to listen on, defaults to 8983. Set solrCoreUrl = http://127.0.0.1:<port>/solr\n" +
+                "delay        ... Time in ms every request takes.\n" +
+                "failure rate ... Fraction of the requests answered by 503 Service Unavailable, e.g. 0.2.\n" +
+                "text         ... Requests containing the text, e.g. an image path, are answered by 400 Bad Request.");
+    }
+
+    SolrStub() throws IOException {
+        ok = response(0, null);
+        // SolrJ reads the body of a 400 response, so it has to be an error in javabin format like Solr sends it.
+        rejected = response(400, "Document rejected by the stub");
+    }
+
+    private static byte[] response(int status, String error) throws IOException {
+        NamedList<Object> header = new NamedList<Object>();
+        header.add("status", status);
+        header.add("QTime", 0);
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("responseHeader", header);
+        if (error != null) {
+            NamedList<Object> e = new NamedList<Object>();
+            e.add("msg", error);
+            e.add("code", status);
+            response.add("error", e);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JavaBinCodec().marshal(response, out);
+        return out.toByteArray();
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        long t = System.currentTimeMillis();
+        int concurrent = running.incrementAndGet();
+        try {
+            String body = read(exchange.getRequestBody());
+            if (delay > 0) Thread.sleep(delay);
+            int status;
+            if (reject != null && body.contains(reject)) {
+                status = 400;
+                respond(exchange, status, "application/octet-stream", rejected);
+            } else if (random.nextDouble() < failureRate) {
+                status = 503;
+                respond(exchange, status, "text/plain", "Service Unavailable".getBytes("UTF-8"));
+            } else {
+                status = 200;
+                respond(exchange, status, "application/octet-stream", ok);
+            }
+            System.out.println(status + " " + exchange.getRequestURI().getPath() + " " + body.length() + " bytes, "
+                    + (System.currentTimeMillis() - t) + " ms, " + concurrent + " concurrent");
+        } catch (InterruptedException e) {
+            exchange.close();
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+}
@@ -0,0 +1,399 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.DocumentBuilderFactory;
+import net.semanticmetadata.lire.impl.ChainedDocumentBuilder;
+import net.semanticmetadata.lire.impl.SurfDocumentBuilder;
+import net.semanticmetadata.lire.indexing.LireCustomCodec;
+import net.semanticmetadata.lire.utils.LuceneUtils;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Indexes images in a pipeline of stages, each of them with its own pool of threads:
+ * reading the files, decoding the images, extracting the global features, extracting
+ * the local (SURF) features and writing to the index. The stages are connected by
+ * bounded queues, so a slow stage holds back the stages before it instead of filling the heap.
+ * <p/>
+ * Compared to the {@link ParallelIndexer} the file reads are done in parallel, which helps
+ * on network file systems, and the cheap global features don't wait behind SURF extraction.
+ */
+public class StagedIndexer implements Runnable {
+    private String indexPath;
+    private File imageList;
+    private int readThreads = 4;
+    private int decodeThreads = 2;
+    private int globalThreads = 2;
+    private int localThreads = 2;
+    private int writeThreads = 1;
+    private int queueSize = 100;
+    private IndexWriterConfig.OpenMode openMode = IndexWriterConfig.OpenMode.CREATE_OR_APPEND;
+    // all xx seconds a status message will be displayed
+    private int monitoringInterval = 30;
+    private List<Stage<?>> stages = new ArrayList<Stage<?>>();
+    IndexWriter writer;
+    boolean ended = false;
+    boolean threadFinished = false;
+    AtomicInteger overallCount = new AtomicInteger();
+    // images, which could not be read or analyzed in one of the stages.
+    AtomicInteger rejectedCount = new AtomicInteger();
+    int numImages = -1;
+    // file contents and decoded images are reused to keep the garbage collector calm.
+    private BufferPool bufferPool = new BufferPool(64L << 20);
+    private RasterPool rasterPool;
+
+    // marks the end of the input in the queues.
+    private static final Item POISON = new Item(null);
+
+    /**
+     * @param indexPath
+     * @param imageList a file containing a list of images, one per line
+     */
+    public StagedIndexer(String indexPath, File imageList) {
+        this.indexPath = indexPath;
+        this.imageList = imageList;
+    }
+
+    /**
+     * @param indexPath
+     * @param imageList a file containing a list of images, one per line
+     * @param overWrite overwrite (instead of append) the index.
+     */
+    public StagedIndexer(String indexPath, File imageList, boolean overWrite) {
+        this.indexPath = indexPath;
+        this.imageList = imageList;
+        if (overWrite) openMode = IndexWriterConfig.OpenMode.CREATE;
+    }
+
+    /**
+     * Sets the number of threads of each stage. Set localThreads to 0 to skip the local feature stage.
+     */
+    public void setThreads(int readThreads, int decodeThreads, int globalThreads, int localThreads, int writeThreads) {
+        this.readThreads = Math.max(1, readThreads);
+        this.decodeThreads = Math.max(1, decodeThreads);
+        this.globalThreads = Math.max(1, globalThreads);
+        this.localThreads = Math.max(0, localThreads);
+        this.writeThreads = Math.max(1, writeThreads);
+    }
+
+    /**
+     * @param queueSize capacity of each queue between two stages.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     * Overwrite this method to define the cheap global feature builders. The document created by
+     * this chain also holds the identifier of the image.
+     *
+     * @param builder
+     */
+    public void addGlobalBuilders(ChainedDocumentBuilder builder) {
+        builder.addBuilder(DocumentBuilderFactory.getColorLayoutBuilder());
+        builder.addBuilder(DocumentBuilderFactory.getEdgeHistogramBuilder());
+    }
+
+    /**
+     * Overwrite this method to define the expensive local feature builders. Their fields are added
+     * to the document created by the global builders.
+     *
+     * @param builder
+     */
+    public void addLocalBuilders(ChainedDocumentBuilder builder) {
+        builder.addBuilder(new SurfDocumentBuilder());
+    }
+
+    public void run() {
+        IndexWriterConfig config = new IndexWriterConfig(LuceneUtils.LUCENE_VERSION, new StandardAnalyzer(LuceneUtils.LUCENE_VERSION));
+        config.setOpenMode(openMode);
+        config.setCodec(new LireCustomCodec());
+        try {
+            writer = new IndexWriter(FSDirectory.open(new File(indexPath)), config);
+            List<String> files = new LinkedList<String>();
+            BufferedReader br = new BufferedReader(new FileReader(imageList));
+            String line = null;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().length() > 3) files.add(line.trim());
+            }
+            br.close();
+            numImages = files.size();
+            System.out.println("Indexing " + files.size() + " images.");
+
+            rasterPool = new RasterPool(Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 8));
+            createStages();
+            long l = System.currentTimeMillis();
+            for (Stage<?> stage : stages) {
+                stage.start();
+            }
+            Thread m = new Thread(new Monitoring());
+            m.setDaemon(true);
+            m.start();
+
+            // the reading stage is fed from here, the bounded queue keeps the list from running ahead.
+            Stage<?> first = stages.get(0);
+            for (String file : files) {
+                first.put(new Item(file));
+            }
+            for (int i = 0; i < first.numberOfThreads; i++) {
+                first.put(POISON);
+            }
+            stages.get(stages.size() - 1).join();
+            ended = true;
+
+            long l1 = System.currentTimeMillis() - l;
+            int count = overallCount.get();
+            System.out.println("Analyzed " + count + " images in " + l1 / 1000 + " seconds, ~" + ((count > 0) ? (l1 / count) : "n.a.") + " ms each.");
+            writer.commit();
+            writer.close();
+            threadFinished = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Check is this thread is still running.
+     *
+     * @return
+     */
+    public boolean hasEnded() {
+        return threadFinished;
+    }
+
+    public int getNumberOfImages() {
+        return numImages;
+    }
+
+    /**
+     * @return number of images written to the index.
+     */
+    public int getIndexedImages() {
+        return overallCount.get();
+    }
+
+    /**
+     * @return number of images, which could not be read or analyzed. Together with the indexed images
+     *         they make up all images, unless a stage thread died.
+     */
+    public int getRejectedImages() {
+        return rejectedCount.get();
+    }
+
+    private void createStages() {
+        stages.clear();
+        stages.add(new Stage<Void>("read", readThreads) {
+            Item process(Item item, Void context) throws IOException {
+                File file = new File(item.path);
+                item.length = (int) file.length();
+                item.buffer = bufferPool.read(file);
+                return item;
+            }
+        });
+        stages.add(new Stage<ImageDecoder>("decode", decodeThreads) {
+            ImageDecoder createContext() {
+                return new ImageDecoder(rasterPool);
+            }
+
+            Item process(Item item, ImageDecoder decoder) throws IOException {
+                try {
+                    item.image = decoder.decode(item.buffer, item.length);
+                } finally {
+                    bufferPool.release(item.buffer);
+                    item.buffer = null;
+                }
+                if (item.image == null) throw new IOException("Unsupported image format.");
+                return item;
+            }
+        });
+        stages.add(new Stage<ChainedDocumentBuilder>("global", globalThreads) {
+            ChainedDocumentBuilder createContext() {
+                ChainedDocumentBuilder builder = new ChainedDocumentBuilder();
+                addGlobalBuilders(builder);
+                return builder;
+            }
+
+            Item process(Item item, ChainedDocumentBuilder builder) throws IOException {
+                item.document = builder.createDocument(item.image, item.path);
+                return item;
+            }
+        });
+        if (localThreads > 0) {
+            stages.add(new Stage<ChainedDocumentBuilder>("local", localThreads) {
+                ChainedDocumentBuilder createContext() {
+                    ChainedDocumentBuilder builder = new ChainedDocumentBuilder();
+                    addLocalBuilders(builder);
+                    return builder;
+                }
+
+                Item process(Item item, ChainedDocumentBuilder builder) {
+                    Field[] fields = builder.createDescriptorFields(item.image);
+                    for (Field field : fields) {
+                        item.document.add(field);
+                    }
+                    return item;
+                }
+            });
+        }
+        stages.add(new Stage<Void>("write", writeThreads) {
+            Item process(Item item, Void context) throws IOException {
+                writer.addDocument(item.document);
+                overallCount.incrementAndGet();
+                // the builders don't keep the image, so it can be the destination of a later decoding.
+                rasterPool.release(item.image);
+                return null;
+            }
+        });
+        for (int i = 0; i < stages.size() - 1; i++) {
+            stages.get(i).next = stages.get(i + 1);
+        }
+    }
+
+    /**
+     * An image on its way through the pipeline.
+     */
+    static class Item {
+        String path;
+        byte[] buffer;
+        int length;
+        BufferedImage image;
+        Document document;
+
+        Item(String path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * A stage takes items from its queue, processes them with its own threads and hands them over to the
+     * queue of the next stage. The last thread of a stage to finish tells the next stage that the input has ended,
+     * also if the threads were killed by an error. The items handed to a stage without threads are dropped.
+     *
+     * @param <C> the per thread context, e.g. a builder which must not be shared between threads.
+     */
+    abstract class Stage<C> {
+        final String name;
+        final int numberOfThreads;
+        final BlockingQueue<Item> in = new ArrayBlockingQueue<Item>(queueSize);
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        volatile boolean closed = false;
+        final List<Thread> threads = new LinkedList<Thread>();
+        Stage<?> next;
+
+        Stage(String name, int numberOfThreads) {
+            this.name = name;
+            this.numberOfThreads = numberOfThreads;
+        }
+
+        C createContext() {
+            return null;
+        }
+
+        /**
+         * @return the item for the next stage or null if the item should not be passed on.
+         */
+        abstract Item process(Item item, C context) throws Exception;
+
+        void start() {
+            running.set(numberOfThreads);
+            for (int i = 0; i < numberOfThreads; i++) {
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        work();
+                    }
+                }, "StagedIndexer-" + name + "-" + i);
+                threads.add(t);
+                t.start();
+            }
+        }
+
+        void join() throws InterruptedException {
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+
+        /**
+         * Blocks until the queue takes the item or the stage has no threads left.
+         */
+        void put(Item item) throws InterruptedException {
+            while (!in.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) return;
+            }
+        }
+
+        private void work() {
+            try {
+                C context = createContext();
+                while (true) {
+                    Item item = in.take();
+                    if (item == POISON) break;
+                    try {
+                        Item result = process(item, context);
+                        processed.incrementAndGet();
+                        if (result != null && next != null) next.put(result);
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        rejectedCount.incrementAndGet();
+                        System.err.println("[StagedIndexer] Could not " + name + " file " + item.path + ": " + e.getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                if (running.decrementAndGet() == 0) finish();
+            }
+        }
+
+        private void finish() {
+            closed = true;
+            in.clear();
+            if (next == null) return;
+            try {
+                for (int i = 0; i < next.numberOfThreads; i++) {
+                    next.put(POISON);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    class Monitoring implements Runnable {
+        public void run() {
+            long ms = System.currentTimeMillis();
+            while (!ended) {
+                try {
+                    Thread.sleep(1000 * monitoringInterval); // wait xx seconds
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long time = System.currentTimeMillis() - ms;
+                int count = overallCount.get();
+                StringBuilder sb = new StringBuilder();
+                for (Stage<?> stage : stages) {
+                    sb.append(' ').append(stage.name).append('=').append(stage.processed.get()).append('/').append(stage.in.size());
+                }
+                System.out.println("Analyzed " + count + " of " + numImages + " images in " + time / 1000 + " seconds, " + ((count > 0) ? (time / count) : "n.a.") + " ms each (processed/queued:" + sb + ").");
+            }
+        }
+    }
+}
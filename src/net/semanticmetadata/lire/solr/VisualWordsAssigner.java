@@ -0,0 +1,85 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.clustering.Cluster;
+import net.semanticmetadata.lire.imageanalysis.SurfFeature;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * Assigns SURF visual words to single documents using an existing vocabulary (clusters-surf.dat).
+ * The result is the same as with {@link net.semanticmetadata.lire.imageanalysis.bovw.SurfFeatureHistogramBuilder},
+ * but the clusters are read only once and the local features are kept in the document.
+ * Instances are thread safe.
+ */
+public class VisualWordsAssigner {
+    private Cluster[] clusters;
+
+    /**
+     * @param clusterFile the vocabulary, e.g. clusters-surf.dat created by the visualwords step.
+     * @throws IOException
+     */
+    public VisualWordsAssigner(String clusterFile) throws IOException {
+        clusters = Cluster.readClusters(clusterFile);
+    }
+
+    /**
+     * Adds the visual words and the visual words histogram fields to a document containing SURF features.
+     *
+     * @param doc
+     */
+    public void assign(Document doc) {
+        int[] hist = new int[clusters.length];
+        SurfFeature feature = new SurfFeature();
+        for (IndexableField field : doc.getFields(DocumentBuilder.FIELD_NAME_SURF)) {
+            BytesRef bin = field.binaryValue();
+            feature.setByteArrayRepresentation(bin.bytes, bin.offset, bin.length);
+            hist[clusterForFeature(feature)]++;
+        }
+        normalize(hist);
+        doc.add(new TextField(DocumentBuilder.FIELD_NAME_SURF_VISUAL_WORDS, arrayToVisualWordString(hist), Field.Store.YES));
+        doc.add(new StringField(DocumentBuilder.FIELD_NAME_SURF_LOCAL_FEATURE_HISTOGRAM, SerializationUtils.arrayToString(hist), Field.Store.YES));
+    }
+
+    private int clusterForFeature(SurfFeature feature) {
+        double distance = clusters[0].getDistance(feature);
+        int result = 0;
+        for (int i = 1; i < clusters.length; i++) {
+            double tmp = clusters[i].getDistance(feature);
+            if (tmp < distance) {
+                distance = tmp;
+                result = i;
+            }
+        }
+        return result;
+    }
+
+    private void normalize(int[] hist) {
+        int max = 0;
+        for (int i = 0; i < hist.length; i++) {
+            max = Math.max(max, hist[i]);
+        }
+        if (max == 0) return;
+        for (int i = 0; i < hist.length; i++) {
+            hist[i] = (int) Math.floor((hist[i] * 15d) / max);
+        }
+    }
+
+    private String arrayToVisualWordString(int[] hist) {
+        StringBuilder sb = new StringBuilder(1024);
+        for (int i = 0; i < hist.length; i++) {
+            for (int j = 0; j < hist[i]; j++) {
+                sb.append('v').append(i).append(' ');
+            }
+        }
+        return sb.toString();
+    }
+}